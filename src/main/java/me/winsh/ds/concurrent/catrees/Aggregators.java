@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2018 Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ *  This file is part of catrees.
+ *
+ *  catrees is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  catrees is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with catrees.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.winsh.ds.concurrent.catrees;
+
+import java.util.Comparator;
+
+import me.winsh.ds.immutable.ImmutableTreapMap.Aggregator;
+
+/**
+ * Common aggregators for ImmDataCATreeMap. Other aggregates can be used by
+ * implementing ImmutableTreapMap.Aggregator. An aggregator is given to the
+ * constructor of the map, which keeps its aggregates up to date, and the
+ * same object is then passed to ImmDataCATreeMap.rangeAggregate to get a
+ * handle for queries.
+ */
+public final class Aggregators {
+
+	private Aggregators() {
+	}
+
+	/** The number of values */
+	public static <V> Aggregator<V, Long> count() {
+		return new Aggregator<V, Long>() {
+			public Long identity() {
+				return 0L;
+			}
+
+			public Long lift(V value) {
+				return 1L;
+			}
+
+			public Long combine(Long left, Long right) {
+				return left + right;
+			}
+		};
+	}
+
+	/** The sum of the values as a long */
+	public static <V extends Number> Aggregator<V, Long> longSum() {
+		return new Aggregator<V, Long>() {
+			public Long identity() {
+				return 0L;
+			}
+
+			public Long lift(V value) {
+				return value.longValue();
+			}
+
+			public Long combine(Long left, Long right) {
+				return left + right;
+			}
+		};
+	}
+
+	/** The sum of the values as a double */
+	public static <V extends Number> Aggregator<V, Double> doubleSum() {
+		return new Aggregator<V, Double>() {
+			public Double identity() {
+				return 0.0;
+			}
+
+			public Double lift(V value) {
+				return value.doubleValue();
+			}
+
+			public Double combine(Double left, Double right) {
+				return left + right;
+			}
+		};
+	}
+
+	/** The smallest value or null if there are no values */
+	public static <V> Aggregator<V, V> min(Comparator<? super V> comparator) {
+		return new Aggregator<V, V>() {
+			public V identity() {
+				return null;
+			}
+
+			public V lift(V value) {
+				return value;
+			}
+
+			public V combine(V left, V right) {
+				if (left == null) {
+					return right;
+				} else if (right == null) {
+					return left;
+				}
+				return comparator.compare(right, left) < 0 ? right : left;
+			}
+		};
+	}
+
+	/** The largest value or null if there are no values */
+	public static <V> Aggregator<V, V> max(Comparator<? super V> comparator) {
+		return min(comparator.reversed());
+	}
+
+	public static <V extends Comparable<? super V>> Aggregator<V, V> min() {
+		return min(Comparator.<V>naturalOrder());
+	}
+
+	public static <V extends Comparable<? super V>> Aggregator<V, V> max() {
+		return max(Comparator.<V>naturalOrder());
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2018 Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ *  This file is part of catrees.
+ *
+ *  catrees is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  catrees is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with catrees.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.winsh.ds.concurrent.catrees;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import me.winsh.ds.immutable.ImmutableTreapMap.ItemSpliterator;
+
+/**
+ * Runs a bulk operation of ImmDataCATreeMap over the items of a
+ * spliterator. Parts with more than parallelismThreshold items are split
+ * off and forked, and each part is then handled by partFunction. The
+ * results of the parts are combined with the reducer in key order. When
+ * searching, found is set to the first result that is found and the
+ * parts that have not been split yet stop splitting.
+ */
+final class BulkTask<K, V, U> extends RecursiveTask<U> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Spliterator<Map.Entry<K, V>> spliterator;
+	private final long parallelismThreshold;
+	private final Function<Spliterator<Map.Entry<K, V>>, ? extends U> partFunction;
+	private final BiFunction<? super U, ? super U, ? extends U> reducer;
+	/* null when not searching */
+	private final AtomicReference<U> found;
+
+	BulkTask(Spliterator<Map.Entry<K, V>> spliterator, long parallelismThreshold,
+			Function<Spliterator<Map.Entry<K, V>>, ? extends U> partFunction,
+			BiFunction<? super U, ? super U, ? extends U> reducer, AtomicReference<U> found) {
+		this.spliterator = spliterator;
+		this.parallelismThreshold = Math.max(1, parallelismThreshold);
+		this.partFunction = partFunction;
+		this.reducer = reducer;
+		this.found = found;
+	}
+
+	/* Calls action with the remaining items of the part */
+	@SuppressWarnings("unchecked")
+	static <K, V> void forEachItem(Spliterator<Map.Entry<K, V>> part, BiConsumer<? super K, ? super V> action) {
+		if (part instanceof ItemSpliterator) {
+			/* Does not create an entry object for each item */
+			((ItemSpliterator<K, V>) part).forEachRemainingItem(action);
+		} else {
+			part.forEachRemaining((entry) -> action.accept(entry.getKey(), entry.getValue()));
+		}
+	}
+
+	/* Combines the non-null results of transformer for the items of a part */
+	static <K, V, U> Function<Spliterator<Map.Entry<K, V>>, U> reducing(
+			BiFunction<? super K, ? super V, ? extends U> transformer,
+			BiFunction<? super U, ? super U, ? extends U> reducer) {
+		return (part) -> {
+			@SuppressWarnings("unchecked")
+			U[] accumulated = (U[]) new Object[1];
+			forEachItem(part, (key, value) -> {
+				U result = transformer.apply(key, value);
+				if (result != null) {
+					accumulated[0] = accumulated[0] == null ? result : reducer.apply(accumulated[0], result);
+				}
+			});
+			return accumulated[0];
+		};
+	}
+
+	/* Sets found to the first non-null result of searchFunction */
+	static <K, V, U> Function<Spliterator<Map.Entry<K, V>>, U> searching(
+			BiFunction<? super K, ? super V, ? extends U> searchFunction, AtomicReference<U> found) {
+		return (part) -> {
+			while (found.get() == null && part.tryAdvance((entry) -> {
+				U result = searchFunction.apply(entry.getKey(), entry.getValue());
+				if (result != null) {
+					found.compareAndSet(null, result);
+				}
+			})) {
+			}
+			return null;
+		};
+	}
+
+	private boolean searchFinished() {
+		return found != null && found.get() != null;
+	}
+
+	private U combine(U left, U right) {
+		if (left == null) {
+			return right;
+		} else if (right == null) {
+			return left;
+		}
+		return reducer.apply(left, right);
+	}
+
+	@Override
+	protected U compute() {
+		List<BulkTask<K, V, U>> forked = null;
+		while (spliterator.estimateSize() > parallelismThreshold && !searchFinished()) {
+			Spliterator<Map.Entry<K, V>> prefix = spliterator.trySplit();
+			if (prefix == null) {
+				break;
+			}
+			if (forked == null) {
+				forked = new ArrayList<BulkTask<K, V, U>>();
+			}
+			BulkTask<K, V, U> task = new BulkTask<K, V, U>(prefix, parallelismThreshold, partFunction, reducer,
+					found);
+			task.fork();
+			forked.add(task);
+		}
+		U result = partFunction.apply(spliterator);
+		if (forked == null) {
+			return result;
+		}
+		/* The parts that were split off come before this part */
+		U forkedResult = null;
+		for (BulkTask<K, V, U> task : forked) {
+			forkedResult = combine(forkedResult, task.join());
+		}
+		return combine(forkedResult, result);
+	}
+}
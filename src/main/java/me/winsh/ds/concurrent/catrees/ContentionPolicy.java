@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2018 Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ *  This file is part of catrees.
+ *
+ *  catrees is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  catrees is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with catrees.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.winsh.ds.concurrent.catrees;
+
+import me.winsh.ds.mutable.ImmutableTreapMapHolder;
+
+/**
+ * Decides when a base node of an ImmDataCATreeMap should be split or
+ * joined with a neighbor. The statistics are stored in the base node
+ * (see ImmutableTreapMapHolder.getStatistics()) and are only modified
+ * through the policy.
+ * 
+ * The record methods are called while the base node is locked, except in
+ * the LOCK_FREE update mode where they may be called without holding the
+ * lock. Policies should therefore tolerate lost updates.
+ */
+public interface ContentionPolicy {
+
+	/** Passed as wait time when the wait was not measured */
+	public static final long UNMEASURED_WAIT_TIME = -1;
+
+	/** The lock of the base node was taken by someone else */
+	public void recordContended(ImmutableTreapMapHolder<?, ?> baseNode);
+
+	/**
+	 * Called instead of recordContended(baseNode) when a thread had to wait
+	 * for the write lock of the base node. waitNanos is the time the thread
+	 * waited or UNMEASURED_WAIT_TIME if shouldMeasureWaitTime returned false.
+	 */
+	public default void recordContended(ImmutableTreapMapHolder<?, ?> baseNode, long waitNanos) {
+		recordContended(baseNode);
+	}
+
+	/**
+	 * Called after a failed tryLock to decide if the time spent waiting for
+	 * the lock should be measured. Measuring costs two calls to
+	 * System.nanoTime so policies should sample.
+	 */
+	public default boolean shouldMeasureWaitTime(ImmutableTreapMapHolder<?, ?> baseNode) {
+		return false;
+	}
+
+	/** The lock of the base node was acquired without waiting */
+	public void recordUncontended(ImmutableTreapMapHolder<?, ?> baseNode);
+
+	/** The base node was locked by an operation spanning several base nodes */
+	public void recordMultiBaseNodeAccess(ImmutableTreapMapHolder<?, ?> baseNode);
+
+	/** Called with the base node locked */
+	public boolean shouldSplit(ImmutableTreapMapHolder<?, ?> baseNode, int numberOfBaseNodes);
+
+	/** Called with the base node locked */
+	public boolean shouldJoin(ImmutableTreapMapHolder<?, ?> baseNode, int numberOfBaseNodes);
+
+}
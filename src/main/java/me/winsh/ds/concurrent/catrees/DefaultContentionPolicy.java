@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2018 Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ *  This file is part of catrees.
+ *
+ *  catrees is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  catrees is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with catrees.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.winsh.ds.concurrent.catrees;
+
+import me.winsh.ds.mutable.ImmutableTreapMapHolder;
+
+/**
+ * The heuristic described in the CA tree papers. Contended lock
+ * acquisitions increase the statistics counter of a base node with a large
+ * value and uncontended ones decrease it with a small value. The base node
+ * is split when the counter goes above the high contention limit and
+ * joined when it goes below the low contention limit.
+ */
+public class DefaultContentionPolicy implements ContentionPolicy {
+
+	public static final int DEFAULT_HIGH_CONTENTION_LIMIT = 1000;
+	public static final int DEFAULT_LOW_CONTENTION_LIMIT = -1000;
+	public static final int DEFAULT_CONTENDED_CONTRIB = 250;
+	public static final int DEFAULT_UNCONTENDED_CONTRIB = 1;
+	public static final int DEFAULT_MULTI_BASE_NODE_CONTRIB = 100;
+
+	protected final int highContentionLimit;
+	protected final int lowContentionLimit;
+	protected final int contendedContrib;
+	protected final int uncontendedContrib;
+	protected final int multiBaseNodeContrib;
+
+	public DefaultContentionPolicy() {
+		this(DEFAULT_HIGH_CONTENTION_LIMIT, DEFAULT_LOW_CONTENTION_LIMIT, DEFAULT_CONTENDED_CONTRIB,
+				DEFAULT_UNCONTENDED_CONTRIB, DEFAULT_MULTI_BASE_NODE_CONTRIB);
+	}
+
+	public DefaultContentionPolicy(int highContentionLimit, int lowContentionLimit, int contendedContrib,
+			int uncontendedContrib, int multiBaseNodeContrib) {
+		if (lowContentionLimit >= highContentionLimit) {
+			throw new RuntimeException("The low contention limit must be less than the high contention limit");
+		}
+		this.highContentionLimit = highContentionLimit;
+		this.lowContentionLimit = lowContentionLimit;
+		this.contendedContrib = contendedContrib;
+		this.uncontendedContrib = uncontendedContrib;
+		this.multiBaseNodeContrib = multiBaseNodeContrib;
+	}
+
+	public void recordContended(ImmutableTreapMapHolder<?, ?> baseNode) {
+		baseNode.setStatistics(baseNode.getStatistics() + contendedContrib);
+	}
+
+	public void recordUncontended(ImmutableTreapMapHolder<?, ?> baseNode) {
+		baseNode.setStatistics(baseNode.getStatistics() - uncontendedContrib);
+	}
+
+	public void recordMultiBaseNodeAccess(ImmutableTreapMapHolder<?, ?> baseNode) {
+		baseNode.setStatistics(baseNode.getStatistics() - multiBaseNodeContrib);
+	}
+
+	public boolean shouldSplit(ImmutableTreapMapHolder<?, ?> baseNode, int numberOfBaseNodes) {
+		return baseNode.getStatistics() > highContentionLimit;
+	}
+
+	public boolean shouldJoin(ImmutableTreapMapHolder<?, ?> baseNode, int numberOfBaseNodes) {
+		return baseNode.getStatistics() < lowContentionLimit;
+	}
+
+	public int getHighContentionLimit() {
+		return highContentionLimit;
+	}
+
+	public int getLowContentionLimit() {
+		return lowContentionLimit;
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2018 Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ *  This file is part of catrees.
+ *
+ *  catrees is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  catrees is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with catrees.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.winsh.ds.concurrent.catrees;
+
+import me.winsh.ds.mutable.ImmutableTreapMapHolder;
+
+/**
+ * Splits a base node on the first contended lock acquisition as long as
+ * the map has fewer than maxEagerBaseNodes base nodes. Above that limit
+ * the default heuristic is used. This makes a map that is known to be
+ * accessed by many threads reach a suitable granularity quickly.
+ */
+public class EagerSplitContentionPolicy extends DefaultContentionPolicy {
+
+	private final int maxEagerBaseNodes;
+
+	public EagerSplitContentionPolicy(int maxEagerBaseNodes) {
+		super();
+		this.maxEagerBaseNodes = maxEagerBaseNodes;
+	}
+
+	public EagerSplitContentionPolicy(int maxEagerBaseNodes, int highContentionLimit, int lowContentionLimit,
+			int contendedContrib, int uncontendedContrib, int multiBaseNodeContrib) {
+		super(highContentionLimit, lowContentionLimit, contendedContrib, uncontendedContrib, multiBaseNodeContrib);
+		this.maxEagerBaseNodes = maxEagerBaseNodes;
+	}
+
+	@Override
+	public boolean shouldSplit(ImmutableTreapMapHolder<?, ?> baseNode, int numberOfBaseNodes) {
+		if (numberOfBaseNodes < maxEagerBaseNodes) {
+			return baseNode.getStatistics() >= contendedContrib;
+		}
+		return super.shouldSplit(baseNode, numberOfBaseNodes);
+	}
+
+	@Override
+	public boolean shouldJoin(ImmutableTreapMapHolder<?, ?> baseNode, int numberOfBaseNodes) {
+		// Joining below the limit would only lead to new eager splits
+		return numberOfBaseNodes > maxEagerBaseNodes && super.shouldJoin(baseNode, numberOfBaseNodes);
+	}
+
+	public int getMaxEagerBaseNodes() {
+		return maxEagerBaseNodes;
+	}
+
+}
@@ -23,21 +23,40 @@ package me.winsh.ds.concurrent.catrees;
 import java.io.File;
 import java.io.PrintStream;
 import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
 
 import me.winsh.ds.immutable.ImmutableTreapMap;
+import me.winsh.ds.immutable.ImmutableTreapMap.Aggregator;
 import me.winsh.ds.immutable.ImmutableTreapMap.ImmutableTreapValue;
+import me.winsh.ds.immutable.ImmutableTreapSnapshot;
 import me.winsh.ds.mutable.ImmutableTreapMapHolder;
 import me.winsh.ds.mutable.LongStack;
 import me.winsh.ds.mutable.Stack;
@@ -69,23 +88,71 @@ import me.winsh.ds.mutable.interfaces.SplitableAndJoinableMap;
  */
 public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap<K, V> {
 	
+	/**
+	 * Decides how put, putIfAbsent and remove modify a base node.
+	 * 
+	 * LOCK_BASED: the base node's write lock is taken for every update.
+	 * 
+	 * LOCK_FREE: the new treap is built without taking the lock and is
+	 * installed with a single CAS on the base node's root. Failed CAS
+	 * attempts are counted as contention. Updates fall back to locking when
+	 * the base node is locked (for example by a range query or while it is
+	 * being split or joined).
+	 * 
+	 * COMBINING: a thread that finds the base node's lock taken publishes
+	 * its operation in the base node and waits. The thread holding the
+	 * lock applies all published operations in one pass and installs a
+	 * single new root, so there is no lock handoff per operation.
+	 */
+	public static enum UPDATE_MODE {
+		LOCK_BASED,
+		LOCK_FREE,
+		COMBINING;
+	}
+
 	// === Private functions and data structures ===
 	
-	private volatile Object root = new ImmutableTreapMapHolder<K, V>();
+	private volatile Object root;
 	
 	private final Comparator<? super K> comparator;
 
+	private final UPDATE_MODE updateMode;
+
+	private final ContentionPolicy contentionPolicy;
+
+	// Splits and joins are done by tasks submitted here when not null
+	private final Executor maintenanceExecutor;
+
+	// The aggregators whose aggregates are kept in the treap nodes (null = none)
+	private final Aggregator<?, ?>[] aggregators;
+
+
+	// Only used as input to the contention policy so it does not need to
+	// be exact while base nodes are being split and joined
+	private final AtomicInteger numberOfBaseNodes = new AtomicInteger(1);
+
+	// Keys of base nodes that a split has made too deep in the route layer
+	private final ConcurrentLinkedQueue<Object> deepRouteKeys = new ConcurrentLinkedQueue<Object>();
+
+	// Set while a task that rebalances the route layer around deepRouteKeys is scheduled
+	private final AtomicBoolean routeLayerRebalanceScheduled = new AtomicBoolean(false);
+
 	static private final class RouteNode {
 		volatile Object left;
 		volatile Object right;
 		final Object key;
 		final ReentrantLock lock = new ReentrantLock();
-		boolean valid = true;
+		// Read without the lock by getNextBaseNodeAndStack
+		volatile boolean valid = true;
+		// Changed by a join that removes the parent. The join holds the
+		// lock of the parent when it changes this field.
+		volatile RouteNode parent;
 
-		public RouteNode(Object key, Object left, Object right) {
+		public RouteNode(Object key, Object left, Object right, RouteNode parent) {
 			this.key = key;
 			this.left = left;
 			this.right = right;
+			this.parent = parent;
 		}
 
 		public String toString() {
@@ -95,22 +162,25 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 
 
 
-	
-	//TODO rewrite this to make use of snapshot functionality
-	private int sizeHelper(Object currentNode) {
-		if (currentNode == null) {
-			return 0;
-		} else {
-			if (currentNode instanceof RouteNode) {
-				RouteNode r = (RouteNode) currentNode;
-				int sizeSoFar = sizeHelper(r.left);
-				return sizeSoFar + sizeHelper(r.right);
-			} else {
-				@SuppressWarnings("unchecked")
-				ImmutableTreapMapHolder<K, V> b = (ImmutableTreapMapHolder<K, V>) currentNode;
-				return b.size();
-			}
+
+	// Updated after each operation that adds or removes a key, so it may
+	// lag behind the base nodes while operations are in progress
+	private final LongAdder sizeCounter = new LongAdder();
+
+	// Successful put and putIfAbsent operations return null when they
+	// have added a key and remove returns non-null when it has removed one
+	private final <T> T countAdded(T prevValue) {
+		if (prevValue == null) {
+			sizeCounter.increment();
+		}
+		return prevValue;
+	}
+
+	private final <T> T countRemoved(T prevValue) {
+		if (prevValue != null) {
+			sizeCounter.decrement();
 		}
+		return prevValue;
 	}
 
 	final private Object getBaseNodeUsingComparator(Object keyParam) {
@@ -131,6 +201,17 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 	}
 
 	final private Object getBaseNode(Object keyParam) {
+		BaseNodeIndex index = baseNodeIndex;
+		if (index != null) {
+			Object baseNode = lookupInBaseNodeIndex(index, keyParam);
+			if (baseNode != null) {
+				return baseNode;
+			}
+		}
+		return getBaseNodeUsingRouteLayer(keyParam);
+	}
+
+	final private Object getBaseNodeUsingRouteLayer(Object keyParam) {
 		Object currNode = root;
 		if (comparator != null) {
 			return getBaseNodeUsingComparator(keyParam);
@@ -158,6 +239,7 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 		}
 
 		RouteNode parent = (RouteNode) baseNode.getParent();
+		baseNode.freeze();
 		Object[] writeBackSplitKey = new Object[1];
 		@SuppressWarnings("unchecked")
 		SplitableAndJoinableMap<K, V>[] writeBackRightTree = new SplitableAndJoinableMap[1];
@@ -170,9 +252,13 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 		@SuppressWarnings("unchecked")
 		K splitKey = (K) writeBackSplitKey[0];
 		ImmutableTreapMapHolder<K, V> rightTree = (ImmutableTreapMapHolder<K, V>) writeBackRightTree[0];
-		RouteNode newRoute = new RouteNode(splitKey, leftTree, rightTree);
+		RouteNode newRoute = new RouteNode(splitKey, leftTree, rightTree, parent);
 		leftTree.setParent(newRoute);
 		rightTree.setParent(newRoute);
+		// Invalidate before the new base nodes become reachable so that a
+		// lock-free reader never sees a valid but outdated base node
+		baseNode.invalidate();
+		int baseNodes = numberOfBaseNodes.incrementAndGet();
 		if (parent == null) {
 			root = newRoute;
 		} else {
@@ -182,7 +268,269 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 				parent.right = newRoute;
 			}
 		}
-		baseNode.invalidate();
+		if (routeDepth(splitKey) > maxRouteDepth(baseNodes)) {
+			requestRouteLayerRebalance(splitKey);
+		}
+		baseNodesChanged(baseNodes);
+	}
+
+	// === Route layer rebalancing =================
+
+	/*
+	 * Splits always put the new route node where the split base node was,
+	 * so skewed split histories (for example a hot spot that moves with
+	 * increasing keys) make the route layer deep. When a split makes the
+	 * path to a base node longer than twice the depth of a balanced route
+	 * layer, the key of the split is queued and a task rebuilds the lowest
+	 * route node on the path whose subtree is too high for its number of
+	 * base nodes (like in a scapegoat tree). Only the base nodes under that
+	 * route node are locked, and the task runs on the maintenance executor
+	 * (or the common fork join pool), so updates never wait for it.
+	 */
+	private static int maxRouteDepth(int numberOfBaseNodes) {
+		return 2 * (32 - Integer.numberOfLeadingZeros(numberOfBaseNodes));
+	}
+
+	@SuppressWarnings("unchecked")
+	private int routeDepth(K key) {
+		int depth = 0;
+		Object currNode = root;
+		while (currNode instanceof RouteNode) {
+			RouteNode currNodeR = (RouteNode) currNode;
+			depth++;
+			if (lessThan(key, (K) currNodeR.key)) {
+				currNode = currNodeR.left;
+			} else {
+				currNode = currNodeR.right;
+			}
+		}
+		return depth;
+	}
+
+	private void requestRouteLayerRebalance(K key) {
+		deepRouteKeys.add(key);
+		if (!routeLayerRebalanceScheduled.compareAndSet(false, true)) {
+			return; // The scheduled task will take the key
+		}
+		Executor executor = maintenanceExecutor == null ? ForkJoinPool.commonPool() : maintenanceExecutor;
+		try {
+			executor.execute(this::rebalanceDeepRoutes);
+		} catch (RejectedExecutionException e) {
+			routeLayerRebalanceScheduled.set(false);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void rebalanceDeepRoutes() {
+		while (true) {
+			Object key;
+			while ((key = deepRouteKeys.poll()) != null) {
+				rebalanceRouteLayerAround((K) key);
+			}
+			routeLayerRebalanceScheduled.set(false);
+			// A key may have been added after the last poll
+			if (deepRouteKeys.isEmpty() || !routeLayerRebalanceScheduled.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Rebuilds subtrees on the path to the base node of key until the path
+	 * is short enough again. Gives up if a subtree changes while it is
+	 * being locked, in which case the split that changed it checks the
+	 * depth again.
+	 */
+	private void rebalanceRouteLayerAround(K key) {
+		Stack<RouteNode> path = new Stack<RouteNode>();
+		while (true) {
+			path.resetStack();
+			Object node = getBaseNodeAndStack(key, path);
+			int depth = path.size();
+			if (depth <= maxRouteDepth(numberOfBaseNodes.get())) {
+				return;
+			}
+			// Find the lowest route node on the path with a too high subtree
+			Object[] pathArray = path.getStackArray();
+			RouteNode scapegoat = null;
+			int size = 1;
+			for (int i = depth - 1; i >= 0; i--) {
+				RouteNode routeNode = (RouteNode) pathArray[i];
+				size += countBaseNodes(routeNode.left == node ? routeNode.right : routeNode.left);
+				if (depth - i > maxRouteDepth(size)) {
+					scapegoat = routeNode;
+					break;
+				}
+				node = routeNode;
+			}
+			if (scapegoat == null || !rebuildRouteSubtree(scapegoat)) {
+				return;
+			}
+		}
+	}
+
+	private int countBaseNodes(Object node) {
+		Stack<Object> toVisit = new Stack<Object>();
+		int count = 0;
+		toVisit.push(node);
+		while (toVisit.size() > 0) {
+			Object current = toVisit.pop();
+			if (current instanceof RouteNode) {
+				RouteNode r = (RouteNode) current;
+				toVisit.push(r.right);
+				toVisit.push(r.left);
+			} else {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// Adds the route nodes in the subtree of node to routeNodes and the base nodes to baseNodes in key order
+	private void collectSubtree(Object node, Stack<RouteNode> routeNodes, Stack<Object> baseNodes) {
+		Stack<Object> toVisit = new Stack<Object>();
+		toVisit.push(node);
+		while (toVisit.size() > 0) {
+			Object current = toVisit.pop();
+			if (current instanceof RouteNode) {
+				RouteNode r = (RouteNode) current;
+				routeNodes.push(r);
+				toVisit.push(r.right);
+				toVisit.push(r.left);
+			} else {
+				baseNodes.push(current);
+			}
+		}
+	}
+
+	/*
+	 * Replaces the subtree of subtreeRoot with a balanced one. The base
+	 * nodes in the subtree are locked in key order like in lockBaseNodes,
+	 * so no split or join can change the subtree while it is rebuilt. If
+	 * one of them is invalid the subtree has already changed and false is
+	 * returned. The old route nodes are invalidated so that
+	 * getNextBaseNodeAndStack does not continue from them.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean rebuildRouteSubtree(RouteNode subtreeRoot) {
+		Stack<RouteNode> oldRouteNodes = new Stack<RouteNode>();
+		Stack<Object> baseNodes = new Stack<Object>();
+		collectSubtree(subtreeRoot, oldRouteNodes, baseNodes);
+		Object[] baseNodeArray = baseNodes.getStackArray();
+		int locked = 0;
+		boolean unchanged = true;
+		while (unchanged && locked < baseNodes.size()) {
+			ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) baseNodeArray[locked];
+			baseNode.lockNoStats();
+			locked++;
+			unchanged = baseNode.isValid();
+		}
+		// The base nodes are still valid if the whole route layer has been
+		// rebuilt, but then subtreeRoot has been invalidated. Nothing else
+		// can invalidate it while its base nodes are locked, so its parent
+		// link leads to a valid route node.
+		unchanged = unchanged && subtreeRoot.valid;
+		if (unchanged) {
+			subtreeRoot.lock.lock();
+			RouteNode parent = lockParentOf(subtreeRoot);
+			Object newSubtree = buildRouteLayer(baseNodeArray, 0, baseNodes.size() - 1, parent);
+			if (parent == null) {
+				root = newSubtree;
+			} else if (parent.left == subtreeRoot) {
+				parent.left = newSubtree;
+			} else {
+				parent.right = newSubtree;
+			}
+			invalidateRouteNodes(oldRouteNodes);
+			if (parent != null) {
+				parent.lock.unlock();
+			}
+			subtreeRoot.lock.unlock();
+		}
+		for (int i = 0; i < locked; i++) {
+			((ImmutableTreapMapHolder<K, V>) baseNodeArray[i]).unlock();
+		}
+		return unchanged;
+	}
+
+	private void invalidateRouteNodes(Stack<RouteNode> routeNodes) {
+		Object[] routeNodeArray = routeNodes.getStackArray();
+		for (int i = 0; i < routeNodes.size(); i++) {
+			((RouteNode) routeNodeArray[i]).valid = false;
+		}
+	}
+
+	private Object buildRouteLayer(Object[] baseNodes, int from, int to, RouteNode parent) {
+		if (from == to) {
+			@SuppressWarnings("unchecked")
+			ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) baseNodes[from];
+			baseNode.setParent(parent);
+			return baseNode;
+		}
+		int mid = (from + to + 1) / 2;
+		@SuppressWarnings("unchecked")
+		ImmutableTreapMapHolder<K, V> leftOfKey = (ImmutableTreapMapHolder<K, V>) baseNodes[mid - 1];
+		RouteNode routeNode = new RouteNode(leftOfKey.getRouteUpperBound(), null, null, parent);
+		routeNode.left = buildRouteLayer(baseNodes, from, mid - 1, routeNode);
+		routeNode.right = buildRouteLayer(baseNodes, mid, to, routeNode);
+		return routeNode;
+	}
+
+	/**
+	 * Replaces the route layer with a balanced one. All base nodes are
+	 * locked while the new route layer is built, so no split or join can
+	 * happen at the same time. The contents of the base nodes are not
+	 * touched and lock-free readers may continue to use the old route
+	 * nodes, which still lead to the right base nodes. Deep paths are
+	 * rebalanced automatically after splits, so this is only needed to get
+	 * a route layer of minimal depth.
+	 */
+	public void rebalanceRouteLayer() {
+		Stack<ImmutableTreapMapHolder<K, V>> nodes = lockBaseNodes(LOCKING_MODE.MAINTENANCE_LOCK);
+		Object[] baseNodes = nodes.getStackArray();
+		Stack<RouteNode> oldRouteNodes = new Stack<RouteNode>();
+		collectSubtree(root, oldRouteNodes, new Stack<Object>());
+		root = buildRouteLayer(baseNodes, 0, nodes.size() - 1, null);
+		invalidateRouteNodes(oldRouteNodes);
+		numberOfBaseNodes.set(nodes.size());
+		baseNodeIndex = createBaseNodeIndex(baseNodes, nodes.size());
+		baseNodeIndexChanges.set(0);
+		unlockBaseNodes(nodes, LOCKING_MODE.MAINTENANCE_LOCK);
+	}
+
+	/**
+	 * The number of route nodes on the longest path from the root to a
+	 * base node. The value is approximate if the map is modified
+	 * concurrently.
+	 */
+	public int getRouteLayerDepth() {
+		Stack<Object> nodes = new Stack<Object>();
+		LongStack depths = new LongStack();
+		int maxDepth = 0;
+		nodes.push(root);
+		depths.push(0);
+		while (nodes.size() > 0) {
+			Object node = nodes.pop();
+			int depth = (int) depths.pop();
+			if (node instanceof RouteNode) {
+				RouteNode r = (RouteNode) node;
+				nodes.push(r.left);
+				depths.push(depth + 1);
+				nodes.push(r.right);
+				depths.push(depth + 1);
+			} else {
+				maxDepth = Math.max(maxDepth, depth);
+			}
+		}
+		return maxDepth;
+	}
+
+	/**
+	 * The current number of base nodes. The value is approximate if the
+	 * map is modified concurrently.
+	 */
+	public int getNumberOfBaseNodes() {
+		return numberOfBaseNodes.get();
 	}
 
 	final private ImmutableTreapMapHolder<K, V> leftmostBaseNode(Object node) {
@@ -207,47 +555,30 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 		return toReturn;
 	}
 
-	final private RouteNode parentOfUsingComparator(RouteNode node) {
-		@SuppressWarnings("unchecked")
-		K key = (K) node.key;
-		Object prevNode = null;
-		Object currNode = root;
-
-		while (currNode != node) {
-			RouteNode currNodeR = (RouteNode) currNode;
-			@SuppressWarnings("unchecked")
-			K routeKey = (K) (currNodeR.key);
-			prevNode = currNode;
-			if (comparator.compare(key, routeKey) < 0) {
-				currNode = currNodeR.left;
-			} else {
-				currNode = currNodeR.right;
+	/*
+	 * Locks and returns the parent of a locked route node (null if the
+	 * route node is the root). The parent link is read again if the parent
+	 * was removed by a join before we got its lock.
+	 */
+	final private RouteNode lockParentOf(RouteNode node) {
+		RouteNode parent = null;
+		do {
+			if (parent != null) {
+				parent.lock.unlock();
 			}
-		}
-		return (RouteNode) prevNode;
-
+			parent = node.parent;
+			if (parent != null) {
+				parent.lock.lock();
+			}
+		} while (parent != null && !parent.valid);
+		return parent;
 	}
 
-	final private RouteNode parentOf(RouteNode node) {
-		if (comparator != null) {
-			return parentOfUsingComparator(node);
-		} else {
-			@SuppressWarnings("unchecked")
-			Comparable<? super K> key = (Comparable<? super K>) node.key;
-			Object prevNode = null;
-			Object currNode = root;
-			while (currNode != node) {
-				RouteNode currNodeR = (RouteNode) currNode;
-				@SuppressWarnings("unchecked")
-				K routeKey = (K) (currNodeR.key);
-				prevNode = currNode;
-				if (key.compareTo(routeKey) < 0) {
-					currNode = currNodeR.left;
-				} else {
-					currNode = currNodeR.right;
-				}
-			}
-			return (RouteNode) prevNode;
+	// Must be called with the locks of the removed route node and the new
+	// parent held, before the removed route node is invalidated
+	final private void setParentOf(Object node, RouteNode parent) {
+		if (node instanceof RouteNode) {
+			((RouteNode) node).parent = parent;
 		}
 	}
 
@@ -266,19 +597,19 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 				return;
 			} else {
 				// System.out.println("JOIN HAPPENS");
+				baseNode.freeze();
+				neighborBase.freeze();
 				ImmutableTreapMapHolder<K, V> newNeighborBase = (ImmutableTreapMapHolder<K, V>) baseNode
 						.join(neighborBase);
 				parent.lock.lock();
-				RouteNode gparent = null; // gparent = grandparent
-				do {
-					if (gparent != null) {
-						gparent.lock.unlock();
-					}
-					gparent = parentOf(parent);
-					if (gparent != null) {
-						gparent.lock.lock();
-					}
-				} while (gparent != null && !gparent.valid);
+				RouteNode gparent = lockParentOf(parent); // gparent = grandparent
+				// Invalidate before unlinking so that a lock-free reader never
+				// sees a valid but outdated base node. The route locks are
+				// taken first so that readers only retry during the unlinking.
+				neighborBase.invalidate();
+				baseNode.invalidate();
+				numberOfBaseNodes.decrementAndGet();
+				setParentOf(parent.right, gparent);
 				if (gparent == null) {
 					root = parent.right;
 				} else if (gparent.left == parent) {
@@ -307,9 +638,8 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 				} else {
 					neighborBaseParent.right = newNeighborBase;
 				}
-				neighborBase.invalidate();
 				neighborBase.unlock();
-				baseNode.invalidate();
+				baseNodesChanged(numberOfBaseNodes.get());
 			}
 		} else { /* This case is symmetric to the previous one */
 			ImmutableTreapMapHolder<K, V> neighborBase = rightmostBaseNode(parent.left);// ff
@@ -320,19 +650,16 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 				baseNode.resetStatistics();// ff
 			} else {
 				// System.out.println("R" + baseNode + " " + neighborBase);
+				baseNode.freeze();
+				neighborBase.freeze();
 				ImmutableTreapMapHolder<K, V> newNeighborBase = (ImmutableTreapMapHolder<K, V>) neighborBase
 						.join(baseNode);// ff
 				parent.lock.lock();// ff
-				RouteNode gparent = null; // gparent = grandparent //ff
-				do {// ff
-					if (gparent != null) {// ff
-						gparent.lock.unlock();// ff
-					} // ff
-					gparent = parentOf(parent);// ff
-					if (gparent != null) {// ff
-						gparent.lock.lock();// ff
-					} // ff
-				} while (gparent != null && !gparent.valid);// ff
+				RouteNode gparent = lockParentOf(parent); // gparent = grandparent //ff
+				neighborBase.invalidate();// ff
+				baseNode.invalidate();// ff
+				numberOfBaseNodes.decrementAndGet();// ff
+				setParentOf(parent.left, gparent);
 				if (gparent == null) {// ff
 					root = parent.left;// ff
 				} else if (gparent.left == parent) {// ff
@@ -359,38 +686,249 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 				} else {// ff
 					neighborBaseParent.right = newNeighborBase;// ff
 				} // ff
-				neighborBase.invalidate();// ff
 				neighborBase.unlock();// ff
-				baseNode.invalidate();// ff
+				baseNodesChanged(numberOfBaseNodes.get());
 			}
 		}
 	}
 
 	private final void adaptIfNeeded(ImmutableTreapMapHolder<K, V> baseNode) {
-		if (baseNode.isHighContentionLimitReached()) {
+		if (maintenanceExecutor != null) {
+			scheduleAdaptationIfNeeded(baseNode);
+		} else {
+			adaptNow(baseNode);
+		}
+	}
+
+	private final void adaptNow(ImmutableTreapMapHolder<K, V> baseNode) {
+		int baseNodes = numberOfBaseNodes.get();
+		if (contentionPolicy.shouldSplit(baseNode, baseNodes)) {
 			highContentionSplit(baseNode);
-		} else if (baseNode.isLowContentionLimitReached()) {
+		} else if (contentionPolicy.shouldJoin(baseNode, baseNodes)) {
 			lowContentionJoin(baseNode);
 		}
 	}
 
-	final private void addAllToList(Object currentNode, LinkedList<Map.Entry<K, V>> list) {
-		if (currentNode == null) {
-			return;
+	/*
+	 * Only marks the base node as a candidate. The split or join is done
+	 * later by the maintenance executor which takes the lock again and
+	 * checks that the base node is still valid and still needs to adapt.
+	 */
+	private final void scheduleAdaptationIfNeeded(final ImmutableTreapMapHolder<K, V> baseNode) {
+		int baseNodes = numberOfBaseNodes.get();
+		if ((contentionPolicy.shouldSplit(baseNode, baseNodes) || contentionPolicy.shouldJoin(baseNode, baseNodes))
+				&& baseNode.tryMarkAdaptationScheduled()) {
+			try {
+				maintenanceExecutor.execute(() -> backgroundAdapt(baseNode));
+			} catch (RejectedExecutionException e) {
+				baseNode.clearAdaptationScheduled();
+			}
+		}
+	}
+
+	private final void backgroundAdapt(ImmutableTreapMapHolder<K, V> baseNode) {
+		baseNode.lockNoStats();
+		baseNode.clearAdaptationScheduled();
+		if (baseNode.isValid()) {
+			adaptNow(baseNode);
+		}
+		baseNode.unlock();
+	}
+
+	private final void lockAndRecordContention(ImmutableTreapMapHolder<K, V> baseNode) {
+		if (baseNode.tryLock()) {
+			contentionPolicy.recordUncontended(baseNode);
+		} else if (contentionPolicy.shouldMeasureWaitTime(baseNode)) {
+			long start = System.nanoTime();
+			baseNode.lockNoStats();
+			contentionPolicy.recordContended(baseNode, System.nanoTime() - start);
 		} else {
-			if (currentNode instanceof RouteNode) {
-				RouteNode r = (RouteNode) currentNode;
-				addAllToList(r.left, list);
-				addAllToList(r.right, list);
-			} else {
-				@SuppressWarnings("unchecked")
-				ImmutableTreapMapHolder<K, V> b = (ImmutableTreapMapHolder<K, V>) currentNode;
-				b.addAllToList(list);
-				return;
+			baseNode.lockNoStats();
+			contentionPolicy.recordContended(baseNode, ContentionPolicy.UNMEASURED_WAIT_TIME);
+		}
+	}
+
+	private final void recordLockFreeContention(ImmutableTreapMapHolder<K, V> baseNode, int failedAttempts) {
+		if (failedAttempts == 0) {
+			contentionPolicy.recordUncontended(baseNode);
+		} else {
+			contentionPolicy.recordContended(baseNode);
+		}
+	}
+
+	// Lock-free updates do not hold the lock, so it has to be taken before
+	// adapting. We do not wait for the lock as someone else is then
+	// already working on the base node.
+	private final void lockFreeAdaptIfNeeded(ImmutableTreapMapHolder<K, V> baseNode, int failedAttempts) {
+		recordLockFreeContention(baseNode, failedAttempts);
+		if (maintenanceExecutor != null) {
+			scheduleAdaptationIfNeeded(baseNode);
+			return;
+		}
+		int baseNodes = numberOfBaseNodes.get();
+		if ((contentionPolicy.shouldSplit(baseNode, baseNodes) || contentionPolicy.shouldJoin(baseNode, baseNodes))
+				&& baseNode.tryLock()) {
+			if (baseNode.isValid()) {
+				adaptNow(baseNode);
+			}
+			baseNode.unlock();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private final V combiningUpdate(int operation, K key, V value) {
+		while (true) {
+			ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) getBaseNode(key);
+			if (baseNode.tryLock()) {
+				contentionPolicy.recordUncontended(baseNode);
+				if (!baseNode.isValid()) {
+					baseNode.failPendingRequests();
+					baseNode.unlock();
+					continue; // retry
+				}
+				V result = baseNode.combine(operation, key, value);
+				adaptIfNeeded(baseNode);
+				baseNode.unlock();
+				return result;
+			}
+			// Contended, let the lock holder do the work
+			contentionPolicy.recordContended(baseNode);
+			ImmutableTreapMapHolder.CombiningRequest<K, V> request = baseNode.publishRequest(operation, key, value);
+			int spins = 0;
+			while (request.isPending()) {
+				if (!baseNode.isLocked() && baseNode.tryLock()) {
+					// Become the combiner
+					if (baseNode.isValid()) {
+						baseNode.combine();
+						adaptIfNeeded(baseNode);
+					} else {
+						baseNode.failPendingRequests();
+					}
+					baseNode.unlock();
+				} else if (++spins % 64 == 0) {
+					Thread.yield();
+				}
+			}
+			if (request.isDone()) {
+				return request.getResult();
 			}
 		}
 	}
 
+	// === Bulk loading ============================
+
+	/**
+	 * Creates a map containing the given keys and values, which must be
+	 * sorted in increasing key order without duplicates. The contents is
+	 * divided into numberOfBaseNodes base nodes under a balanced route
+	 * layer, so the map does not have to be split by contention after
+	 * loading. Takes O(n) time. The map is created as with the default
+	 * constructor.
+	 */
+	public static <K, V> ImmDataCATreeMap<K, V> fromSorted(K[] keys, V[] values, int numberOfBaseNodes) {
+		if (keys.length != values.length) {
+			throw new RuntimeException("There must be as many values as keys");
+		}
+		ImmDataCATreeMap<K, V> map = new ImmDataCATreeMap<K, V>();
+		map.loadSorted(keys, values, keys.length, numberOfBaseNodes);
+		return map;
+	}
+
+	public static <K, V> ImmDataCATreeMap<K, V> fromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries,
+			int numberOfBaseNodes) {
+		return fromSorted(entries, numberOfBaseNodes, null, UPDATE_MODE.LOCK_BASED, new DefaultContentionPolicy(),
+				null);
+	}
+
+	/**
+	 * Like fromSorted(keys, values, numberOfBaseNodes) but takes the entries
+	 * from an iterator, sorted according to comparator, and creates the map
+	 * with the other parameters as in the constructor.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public static <K, V> ImmDataCATreeMap<K, V> fromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries,
+			int numberOfBaseNodes, Comparator<? super K> comparator, UPDATE_MODE updateMode,
+			ContentionPolicy contentionPolicy, Executor maintenanceExecutor,
+			Aggregator<? super V, ?>... aggregators) {
+		ArrayList<Object> keys = new ArrayList<Object>();
+		ArrayList<Object> values = new ArrayList<Object>();
+		while (entries.hasNext()) {
+			Map.Entry<? extends K, ? extends V> entry = entries.next();
+			keys.add(entry.getKey());
+			values.add(entry.getValue());
+		}
+		ImmDataCATreeMap<K, V> map = new ImmDataCATreeMap<K, V>(comparator, updateMode, contentionPolicy,
+				maintenanceExecutor, aggregators);
+		map.loadSorted(keys.toArray(), values.toArray(), keys.size(), numberOfBaseNodes);
+		return map;
+	}
+
+	/*
+	 * Replaces the contents of a newly created map that has not been
+	 * published to other threads.
+	 */
+	@SuppressWarnings("unchecked")
+	private void loadSorted(Object[] keys, Object[] values, int size, int numberOfBaseNodes) {
+		for (int i = 1; i < size; i++) {
+			if (!lessThan((K) keys[i - 1], (K) keys[i])) {
+				throw new RuntimeException("The keys must be sorted in increasing order without duplicates");
+			}
+		}
+		int n = Math.max(1, Math.min(numberOfBaseNodes, size));
+		Object[] baseNodes = new Object[n];
+		for (int i = 0; i < n; i++) {
+			int from = (int) ((long) size * i / n);
+			int to = (int) ((long) size * (i + 1) / n);
+			Object lowerBound = i == 0 ? null : keys[from];
+			Object upperBound = i == n - 1 ? null : keys[to];
+			baseNodes[i] = new ImmutableTreapMapHolder<K, V>(comparator, updateMode == UPDATE_MODE.LOCK_FREE,
+					ImmutableTreapMap.createFromSorted(keys, values, from, to, aggregators), lowerBound, upperBound);
+		}
+		root = buildRouteLayer(baseNodes, 0, n - 1, null);
+		this.numberOfBaseNodes.set(n);
+		baseNodeIndex = createBaseNodeIndex(baseNodes, n);
+		sizeCounter.add(size);
+	}
+
+	private ImmutableTreapMapHolder<K, V> createBaseNode() {
+		return new ImmutableTreapMapHolder<K, V>(comparator, updateMode == UPDATE_MODE.LOCK_FREE, aggregators);
+	}
+
+	/*
+	 * Joins the roots of the locked base nodes. Locks do not stop lock-free
+	 * writers, so in that mode the roots are collected until two
+	 * consecutive collections are identical.
+	 */
+	@SuppressWarnings("unchecked")
+	private ImmutableTreapValue<K, V> joinRootsOfLockedBaseNodes(Stack<ImmutableTreapMapHolder<K, V>> baseNodes) {
+		Object[] baseNodeArray = baseNodes.getStackArray();
+		Stack<ImmutableTreapValue<K, V>> roots = threadLocalBuffers.get().getReturnStack();
+		while (true) {
+			roots.resetStack();
+			for (int i = 0; i < baseNodes.size(); i++) {
+				roots.push(((ImmutableTreapMapHolder<K, V>) baseNodeArray[i]).getRoot());
+			}
+			if (updateMode != UPDATE_MODE.LOCK_FREE || rootsUnchanged(baseNodes, roots)) {
+				return ImmutableTreapMap.cheapJoinAll(roots.getStackArray(), 0, roots.size());
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean rootsUnchanged(Stack<ImmutableTreapMapHolder<K, V>> baseNodes,
+			Stack<ImmutableTreapValue<K, V>> roots) {
+		Object[] baseNodeArray = baseNodes.getStackArray();
+		Object[] rootArray = roots.getStackArray();
+		for (int i = 0; i < baseNodes.size(); i++) {
+			if (((ImmutableTreapMapHolder<K, V>) baseNodeArray[i]).getRoot() != rootArray[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
 
 
 	// boolean equals(Object o);
@@ -482,18 +1020,28 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 		}
 	}
 
+	/*
+	 * The route nodes in the stack may have been removed by a join or
+	 * belong to a replaced part of the route layer that is not updated
+	 * anymore. The next base node is then searched for from the root.
+	 */
 	@SuppressWarnings("unchecked")
 	final private ImmutableTreapMapHolder<K, V> getNextBaseNodeAndStack(Object baseNode, Stack<RouteNode> stack) {
 		RouteNode top = stack.top();
 		if (top == null) {
 			return null;
 		}
+		if (stack.getStackArray()[0] != root || !top.valid) {
+			return getNextBaseNodeAndStackFromRoot(baseNode, stack);
+		}
 		if (top.left == baseNode) {
 			return leftmostBaseNodeAndStack(top.right, stack);
 		}
 		K keyToBeGreaterThan = (K) top.key;
 		while (top != null) {
-			if (top.valid && lessThan(keyToBeGreaterThan, (K) top.key)) {
+			if (!top.valid) {
+				return getNextBaseNodeAndStackFromRoot(baseNode, stack);
+			} else if (lessThan(keyToBeGreaterThan, (K) top.key)) {
 				return leftmostBaseNodeAndStack(top.right, stack);
 			} else {
 				stack.pop();
@@ -503,6 +1051,16 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 		return null;
 	}
 
+	@SuppressWarnings("unchecked")
+	private ImmutableTreapMapHolder<K, V> getNextBaseNodeAndStackFromRoot(Object baseNode, Stack<RouteNode> stack) {
+		K upperBound = (K) ((ImmutableTreapMapHolder<K, V>) baseNode).getRouteUpperBound();
+		stack.resetStack();
+		if (upperBound == null) {
+			return null;
+		}
+		return getBaseNodeAndStack(upperBound, stack);
+	}
+
 	private boolean lessThan(K key1, K key2) {
 		if (comparator != null) {
 			return comparator.compare(key1, key2) < 0;
@@ -561,13 +1119,11 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 			return keyReturnStack;
 		}
 
-		@SuppressWarnings("unused")
 		public Stack<ImmutableTreapMap.ImmutableTreapValue<K, V>> getReturnStack() {
 			returnStack.resetStack();
 			return returnStack;
 		}
 
-		@SuppressWarnings("unused")
 		public LongStack getReadTokenStack() {
 			readTokenStack.resetStack();
 			return readTokenStack;
@@ -607,6 +1163,147 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 		private LongStack readTokenStack = new LongStack();
 	}
 
+	// === Base node index ==========================
+
+	/*
+	 * A flat, sorted array of the base nodes and their lower bounds that
+	 * getBaseNode searches with a binary search instead of chasing route
+	 * node pointers. The route layer is still what splits and joins
+	 * modify. The index is only a cache of it and may be stale: an entry
+	 * is used only if the base node is valid and its bounds contain the
+	 * key. The bounds of a base node never change while it is valid, so
+	 * such an entry is the base node of the key. Otherwise the route layer
+	 * is used. Splits and joins count the changes and the index is rebuilt
+	 * by them (or by the maintenance executor) when enough of it may be
+	 * stale, so lookups never have to rebuild it.
+	 * 
+	 * Each step of the binary search also follows a pointer to a key, so
+	 * the index only beats the balanced route layer when the route nodes
+	 * no longer fit in the caches. In a benchmark with random gets on one
+	 * million keys the index was no faster with 4096 and 8192 base nodes
+	 * but 10-40% faster from 16384 base nodes upwards, so it is not built
+	 * for smaller maps.
+	 */
+	static private final class BaseNodeIndex {
+		final Object[] lowerBounds;
+		final Object[] baseNodes;
+
+		BaseNodeIndex(Object[] lowerBounds, Object[] baseNodes) {
+			this.lowerBounds = lowerBounds;
+			this.baseNodes = baseNodes;
+		}
+	}
+
+	private static final int BASE_NODE_INDEX_MIN_BASE_NODES = 16384;
+	private static final int BASE_NODE_INDEX_CHANGE_FRACTION = 16;
+
+	private volatile BaseNodeIndex baseNodeIndex = null;
+
+	private final AtomicBoolean baseNodeIndexRebuilding = new AtomicBoolean(false);
+
+	// Splits and joins since the base node index was last built
+	private final AtomicInteger baseNodeIndexChanges = new AtomicInteger(0);
+
+	// Called after a split or a join with the new number of base nodes
+	private void baseNodesChanged(int baseNodes) {
+		int changes = baseNodeIndexChanges.incrementAndGet();
+		BaseNodeIndex index = baseNodeIndex;
+		if (index == null ? baseNodes < BASE_NODE_INDEX_MIN_BASE_NODES
+				: changes <= index.baseNodes.length / BASE_NODE_INDEX_CHANGE_FRACTION) {
+			return;
+		}
+		if (!baseNodeIndexRebuilding.compareAndSet(false, true)) {
+			return; // Someone else is already doing it
+		}
+		if (maintenanceExecutor == null) {
+			rebuildBaseNodeIndex();
+			return;
+		}
+		try {
+			maintenanceExecutor.execute(this::rebuildBaseNodeIndex);
+		} catch (RejectedExecutionException e) {
+			baseNodeIndexRebuilding.set(false);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object lookupInBaseNodeIndex(BaseNodeIndex index, Object keyParam) {
+		K key = (K) keyParam;
+		Object[] lowerBounds = index.lowerBounds;
+		int lo = 0;
+		int hi = lowerBounds.length - 1;
+		int found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			Object lowerBound = lowerBounds[mid];
+			if (lowerBound == null || !lessThan(key, (K) lowerBound)) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if (found == -1) {
+			return null;
+		}
+		ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) index.baseNodes[found];
+		Object upperBound = baseNode.getRouteUpperBound();
+		if (!baseNode.isValid() || (upperBound != null && !lessThan(key, (K) upperBound))) {
+			return null;
+		}
+		return baseNode;
+	}
+
+	private BaseNodeIndex createBaseNodeIndex(Object[] baseNodes, int size) {
+		if (size < BASE_NODE_INDEX_MIN_BASE_NODES) {
+			return null;
+		}
+		Object[] lowerBounds = new Object[size];
+		for (int i = 0; i < size; i++) {
+			lowerBounds[i] = ((ImmutableTreapMapHolder<?, ?>) baseNodes[i]).getRouteLowerBound();
+		}
+		return new BaseNodeIndex(lowerBounds, Arrays.copyOf(baseNodes, size));
+	}
+
+	/*
+	 * Collects the base nodes from the route layer without locking. The
+	 * route layer may change during the traversal, so invalid base nodes
+	 * and base nodes that would break the order are left out. The caller
+	 * must have set baseNodeIndexRebuilding.
+	 */
+	@SuppressWarnings("unchecked")
+	private void rebuildBaseNodeIndex() {
+		try {
+			// Changes made during the traversal count towards the next rebuild
+			baseNodeIndexChanges.set(0);
+			Stack<Object> toVisit = new Stack<Object>();
+			Stack<Object> baseNodes = new Stack<Object>();
+			Object lastLowerBound = null;
+			toVisit.push(root);
+			while (toVisit.size() > 0) {
+				Object node = toVisit.pop();
+				if (node instanceof RouteNode) {
+					RouteNode r = (RouteNode) node;
+					toVisit.push(r.right);
+					toVisit.push(r.left);
+				} else {
+					ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) node;
+					Object lowerBound = baseNode.getRouteLowerBound();
+					boolean inOrder = baseNodes.size() == 0 || (lowerBound != null
+							&& (lastLowerBound == null || lessThan((K) lastLowerBound, (K) lowerBound)));
+					if (!baseNode.isValid() || !inOrder) {
+						continue;
+					}
+					baseNodes.push(baseNode);
+					lastLowerBound = lowerBound;
+				}
+			}
+			baseNodeIndex = createBaseNodeIndex(baseNodes.getStackArray(), baseNodes.size());
+		} finally {
+			baseNodeIndexRebuilding.set(false);
+		}
+	}
+
 	private ThreadLocal<ThreadLocalBuffers> threadLocalBuffers = new ThreadLocal<ThreadLocalBuffers>() {
 
 		@Override
@@ -616,15 +1313,141 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 
 	};
 
+	/**
+	 * Atomically replaces the value of every key in [lo, hi] with
+	 * operation.apply(key, value) and removes the keys for which it returns
+	 * null. null as lo or hi means no bound. All base nodes that may
+	 * contain keys in the range are write locked and their new contents
+	 * are computed before any of them is changed, so nothing is changed if
+	 * the operation throws. The new contents are then installed with
+	 * installRoots, so the update is also atomic for lock-free readers.
+	 * Only the parts of the base nodes that contain keys in the range are
+	 * copied.
+	 */
+	@SuppressWarnings("unchecked")
 	public final void rangeUpdate(final K lo, final K hi, BiFunction<K, V, V> operation) {
-		throw new RuntimeException("Not yet implemented");
+		Stack<ImmutableTreapMapHolder<K, V>> nodes = lockAndFreezeBaseNodes(lo, hi);
+		Object[] lockedBaseNodeArray = nodes.getStackArray();
+		try {
+			Object[] newRoots = new Object[nodes.size()];
+			for (int i = 0; i < nodes.size(); i++) {
+				ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) lockedBaseNodeArray[i];
+				newRoots[i] = ImmutableTreapMap.updateValuesInRange(baseNode.getRoot(), lo, hi, operation, comparator);
+			}
+			sizeCounter.add(installRoots(nodes, newRoots));
+		} finally {
+			unfreezeAndUnlockBaseNodes(nodes);
+		}
+	}
+
+	/**
+	 * Atomically removes all keys in [lo, hi] and returns the number of
+	 * removed keys. null as lo or hi means no bound. Each base node is cut
+	 * with two splits and a join of its treap, and base nodes that only
+	 * contain keys in the range are emptied without looking at their
+	 * contents. The new contents are installed with installRoots, as in
+	 * rangeUpdate, so lock-free readers see either all or none of the keys.
+	 * Empty base nodes are joined with their neighbors by the usual
+	 * contention adaptation.
+	 */
+	@SuppressWarnings("unchecked")
+	public final int removeRange(final K lo, final K hi) {
+		Stack<ImmutableTreapMapHolder<K, V>> nodes = lockAndFreezeBaseNodes(lo, hi);
+		Object[] lockedBaseNodeArray = nodes.getStackArray();
+		try {
+			Object[] newRoots = new Object[nodes.size()];
+			for (int i = 0; i < nodes.size(); i++) {
+				ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) lockedBaseNodeArray[i];
+				newRoots[i] = ImmutableTreapMap.removeRange(baseNode.getRoot(), lo, hi, comparator);
+			}
+			int removed = -installRoots(nodes, newRoots);
+			sizeCounter.add(-removed);
+			return removed;
+		} finally {
+			unfreezeAndUnlockBaseNodes(nodes);
+		}
+	}
+
+	/*
+	 * Write locks the base nodes that may contain keys in [lo, hi]. Locks do
+	 * not stop lock-free writers but freezing does, so the base nodes are
+	 * also frozen. They stay valid so the writers retry through the lock.
+	 * The caller must unfreeze them (by installing a new root or with
+	 * unfreezeAndUnlockBaseNodes) before unlocking.
+	 */
+	@SuppressWarnings("unchecked")
+	private Stack<ImmutableTreapMapHolder<K, V>> lockAndFreezeBaseNodes(final K lo, final K hi) {
+		Stack<ImmutableTreapMapHolder<K, V>> nodes = lockBaseNodes(lo, hi, LOCKING_MODE.WRITE_LOCK);
+		Object[] lockedBaseNodeArray = nodes.getStackArray();
+		for (int i = 0; i < nodes.size(); i++) {
+			((ImmutableTreapMapHolder<K, V>) lockedBaseNodeArray[i]).freeze();
+		}
+		return nodes;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void unfreezeAndUnlockBaseNodes(Stack<ImmutableTreapMapHolder<K, V>> nodes) {
+		Object[] lockedBaseNodeArray = nodes.getStackArray();
+		for (int i = 0; i < nodes.size(); i++) {
+			// Does nothing for base nodes where a new root was installed
+			((ImmutableTreapMapHolder<K, V>) lockedBaseNodeArray[i]).unfreeze();
+		}
+		unlockBaseNodes(nodes, LOCKING_MODE.WRITE_LOCK);
+	}
+
+	/*
+	 * Installs newRoots[i] in the i:th base node returned by
+	 * lockAndFreezeBaseNodes and returns the change in size. Lock-free
+	 * readers (get and the optimistic range queries) do not take locks, so
+	 * if several roots change they are first staged in their base nodes
+	 * and then made visible to the readers with a single volatile write.
+	 * Readers therefore see either all old or all new roots.
+	 */
+	@SuppressWarnings("unchecked")
+	private int installRoots(Stack<ImmutableTreapMapHolder<K, V>> nodes, Object[] newRoots) {
+		Object[] lockedBaseNodeArray = nodes.getStackArray();
+		int sizeChange = 0;
+		int changed = 0;
+		for (int i = 0; i < nodes.size(); i++) {
+			ImmutableTreapValue<K, V> oldRoot = ((ImmutableTreapMapHolder<K, V>) lockedBaseNodeArray[i]).getRoot();
+			if (newRoots[i] == oldRoot) {
+				newRoots[i] = null; // Nothing to install
+			} else {
+				sizeChange += ImmutableTreapMap.size((ImmutableTreapValue<K, V>) newRoots[i])
+						- ImmutableTreapMap.size(oldRoot);
+				changed++;
+			}
+		}
+		ImmutableTreapMapHolder.StagedUpdate update = null;
+		if (changed > 1) {
+			update = new ImmutableTreapMapHolder.StagedUpdate();
+			for (int i = 0; i < nodes.size(); i++) {
+				if (newRoots[i] != null) {
+					((ImmutableTreapMapHolder<K, V>) lockedBaseNodeArray[i])
+							.stageRoot((ImmutableTreapValue<K, V>) newRoots[i], update);
+				}
+			}
+			update.commit();
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) lockedBaseNodeArray[i];
+			if (update != null && newRoots[i] != null) {
+				baseNode.installStagedRoot();
+			} else if (newRoots[i] != null) {
+				baseNode.installRoot((ImmutableTreapValue<K, V>) newRoots[i]);
+			}
+			if (updateMode == UPDATE_MODE.COMBINING) {
+				baseNode.combine(); // Help waiting requests
+			}
+		}
+		return sizeChange;
 	}
 
 
 
 
 	private void unlockBaseNode(final LOCKING_MODE mode, ImmutableTreapMapHolder<K, V> baseNode) {
-		if (mode == LOCKING_MODE.WRITE_LOCK)
+		if (mode == LOCKING_MODE.WRITE_LOCK || mode == LOCKING_MODE.MAINTENANCE_LOCK)
 			baseNode.unlock();
 		else if (mode == LOCKING_MODE.READ_LOCK)
 			baseNode.readUnlock();
@@ -632,9 +1455,11 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 
 	private void lockBaseNode(final LOCKING_MODE mode, ImmutableTreapMapHolder<K, V> baseNode) {
 		if (mode == LOCKING_MODE.WRITE_LOCK)
-			baseNode.lock();
+			lockAndRecordContention(baseNode);
 		else if (mode == LOCKING_MODE.READ_LOCK)
 			baseNode.readLock();
+		else
+			baseNode.lockNoStats();
 	}
 
 
@@ -646,7 +1471,11 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 		LongStack readTokenStack = new LongStack();// tlbs.getReadTokenStack();
 		ImmutableTreapMapHolder<K, V> baseNode;
 		// Lock all base nodes that might contain keys in the range
-		baseNode = getBaseNodeAndStack(lo, stack);
+		if (lo == null) {
+			baseNode = getFirstBaseNodeAndStack(stack);
+		} else {
+			baseNode = getBaseNodeAndStack(lo, stack);
+		}
 		long optimisticReadToken = baseNode.getOptimisticReadToken();
 		if (!baseNode.isValid() || !baseNode.validateOptimisticReadToken(optimisticReadToken)) {
 			return null; // Fail
@@ -658,7 +1487,7 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 			readTokenStack.push(optimisticReadToken);
 			// Check if it is the end of our search
 			K baseNodeMaxKey = baseNode.maxKey();
-			if (baseNodeMaxKey != null && lessThan(hi, baseNodeMaxKey)) {
+			if (hi != null && baseNodeMaxKey != null && lessThan(hi, baseNodeMaxKey)) {
 				break; // We have locked all base nodes that we need!
 			}
 			// There might be more base nodes in the range, continue
@@ -677,35 +1506,51 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 		// Stack<STDAVLNode<K,V>> traverseStack = tlbs.getTraverseStack();
 		// TreapStack returnStack = new TreapStack();//tlbs.getReturnStack();
 		Object[] lockedBaseNodeArray = lockedBaseNodesStack.getStackArray();
-		ImmutableTreapValue<K, V> root = ImmutableTreapMap.createEmpty();
+		long[] readTokenArray = readTokenStack.getStackArray();
+		Stack<ImmutableTreapValue<K, V>> roots = new Stack<>();
+		for (int i = 0; i < lockedBaseNodesStack.size(); i++) {
+			ImmutableTreapMapHolder<K, V> map = (ImmutableTreapMapHolder<K, V>) (lockedBaseNodeArray[i]);
+			roots.push(map.getRoot());
+		}
+		// All roots were read while the base nodes were unlocked (and
+		// unchanged in lock-free mode), so they form a consistent snapshot
 		for (int i = 0; i < lockedBaseNodesStack.size(); i++) {
 			ImmutableTreapMapHolder<K, V> map = (ImmutableTreapMapHolder<K, V>) (lockedBaseNodeArray[i]);
-			root = ImmutableTreapMap.cheapJoin(root, map.getRoot());
-			if (!map.validateOptimisticReadToken(optimisticReadToken)) {
+			if (!map.validateOptimisticReadToken(readTokenArray[i])) {
 				return null; // Fail
 			}
-			// returnStack.push(map.getRoot());
-			// returnStack.getStackArray()[16] = map.getRoot();
-			// if(ImmutableTreapMap.isEmpty(map.getRoot())){
-			// System.out.println("HEJ");
-			// };
-			// ImmutableTreapMap.isEmpty(map.getRoot());
-			// if (!map.validateOptimisticReadToken(optimisticReadToken)) {
-			// return null; // Fail
-			// }
-
-			// traverseStack.resetStack();
+		}
+		if (updateMode == UPDATE_MODE.LOCK_FREE && !rootsUnchanged(lockedBaseNodesStack, roots)) {
+			return null; // Fail
 		}
 		for (int i = 0; i < lockedBaseNodesStack.size(); i++) {
 			threadLocalBuffers.get().increaseTraversedNodes();
 		}
-		return root;// new TreapStack();//returnStack;
+		return ImmutableTreapMap.cheapJoinAll(roots.getStackArray(), 0, roots.size());
+	}
+
+
+	/*
+	 * Returns a treap containing (at least) all items in [lo, hi] at one
+	 * point in time. null as lo or hi means no bound. The roots of the base
+	 * nodes are joined with cheapJoinAll, so this is cheap even when the
+	 * range covers many base nodes, and the top of the result is a balanced
+	 * tree with one subtree for each base node.
+	 */
+	private final ImmutableTreapValue<K, V> rangeSnapshot(final K lo, final K hi) {
+		ImmutableTreapValue<K, V> snapshot = optimisticSubSet(lo, hi);
+		if (snapshot == null) {
+			Stack<ImmutableTreapMapHolder<K, V>> nodes = lockBaseNodes(lo, hi, LOCKING_MODE.READ_LOCK);
+			snapshot = joinRootsOfLockedBaseNodes(nodes);
+			unlockBaseNodes(nodes, LOCKING_MODE.READ_LOCK);
+		}
+		return snapshot;
 	}
 
-
 	private static  enum LOCKING_MODE{
 		READ_LOCK,
-		WRITE_LOCK;
+		WRITE_LOCK,
+		MAINTENANCE_LOCK; // Write lock without contention statistics
 	};
 	
 	@SuppressWarnings("unchecked")
@@ -767,17 +1612,23 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 	@SuppressWarnings("unchecked")
 	private final void unlockBaseNodes(Stack<ImmutableTreapMapHolder<K, V>> nodes, LOCKING_MODE mode) {
 		Object[] lockedBaseNodeArray = nodes.getStackArray();
-		if (mode == LOCKING_MODE.WRITE_LOCK && nodes.size() == 1) {
+		if (mode == LOCKING_MODE.MAINTENANCE_LOCK) {
+			for (int i = 0; i < nodes.size(); i++) {
+				unlockBaseNode(mode, (ImmutableTreapMapHolder<K, V>) lockedBaseNodeArray[i]);
+			}
+		} else if (mode == LOCKING_MODE.WRITE_LOCK && nodes.size() == 1) {
 			threadLocalBuffers.get().increaseTraversedNodes();
 			ImmutableTreapMapHolder<K, V> map = (ImmutableTreapMapHolder<K, V>) (lockedBaseNodeArray[0]);
 			// map.addKeysInRangeToStack(lo, hi, consumer, traverseStack);
 			// returnStack.push(map.getRoot());
-			adaptIfNeeded((ImmutableTreapMapHolder<K, V>) (lockedBaseNodeArray[0]));
+			if (map.isValid()) {
+				adaptIfNeeded(map);
+			}
 			unlockBaseNode(mode, map);
 		} else if (mode == LOCKING_MODE.READ_LOCK && nodes.size() == 1) {
 			threadLocalBuffers.get().increaseTraversedNodes();
 			ImmutableTreapMapHolder<K, V> map = (ImmutableTreapMapHolder<K, V>) (lockedBaseNodeArray[0]);
-			map.addToContentionStatistics();// Optimistic attempt failed
+			contentionPolicy.recordContended(map);// Optimistic attempt failed
 			// returnStack.push(map.getRoot());
 			// map.addKeysInRangeToStack(lo, hi, consumer, traverseStack);
 			unlockBaseNode(mode, map);
@@ -786,7 +1637,7 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 				threadLocalBuffers.get().increaseTraversedNodes();
 				ImmutableTreapMapHolder<K, V> map = (ImmutableTreapMapHolder<K, V>) (lockedBaseNodeArray[i]);
 				// returnStack.push(map.getRoot());
-				map.subManyFromContentionStatistics();
+				contentionPolicy.recordMultiBaseNodeAccess(map);
 				unlockBaseNode(mode, map);
 			}
 		}
@@ -865,19 +1716,17 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 		} else if (mode == LOCKING_MODE.READ_LOCK && lockedBaseNodesStack.size() == 1) {
 			threadLocalBuffers.get().increaseTraversedNodes();
 			ImmutableTreapMapHolder<K, V> map = (ImmutableTreapMapHolder<K, V>) (lockedBaseNodeArray[0]);
-			map.addToContentionStatistics();// Optimistic attempt failed
+			contentionPolicy.recordContended(map);// Optimistic attempt failed
 			// returnStack.push(map.getRoot());
 			root = map.getRoot();
 			// map.addKeysInRangeToStack(lo, hi, consumer, traverseStack);
 			unlockBaseNode(mode, map);
 		} else {
-			root = ImmutableTreapMap.createEmpty();
+			root = joinRootsOfLockedBaseNodes(lockedBaseNodesStack);
 			for (int i = 0; i < lockedBaseNodesStack.size(); i++) {
 				threadLocalBuffers.get().increaseTraversedNodes();
 				ImmutableTreapMapHolder<K, V> map = (ImmutableTreapMapHolder<K, V>) (lockedBaseNodeArray[i]);
-				// returnStack.push(map.getRoot());
-				root = ImmutableTreapMap.cheapJoin(root, map.getRoot());
-				map.subManyFromContentionStatistics();
+				contentionPolicy.recordMultiBaseNodeAccess(map);
 				unlockBaseNode(mode, map);
 			}
 		}
@@ -1080,24 +1929,86 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 	// === Constructors ============================
 
 	public ImmDataCATreeMap() {
-		comparator = null;
+		this(null);
 	}
 
 	public ImmDataCATreeMap(Comparator<? super K> comparator) {
+		this(comparator, UPDATE_MODE.LOCK_BASED);
+	}
+
+	public ImmDataCATreeMap(Comparator<? super K> comparator, UPDATE_MODE updateMode) {
+		this(comparator, updateMode, new DefaultContentionPolicy());
+	}
+
+	public ImmDataCATreeMap(Comparator<? super K> comparator, ContentionPolicy contentionPolicy) {
+		this(comparator, UPDATE_MODE.LOCK_BASED, contentionPolicy);
+	}
+
+	public ImmDataCATreeMap(Comparator<? super K> comparator, UPDATE_MODE updateMode,
+			ContentionPolicy contentionPolicy) {
+		this(comparator, updateMode, contentionPolicy, null);
+	}
+
+	/**
+	 * When maintenanceExecutor is not null, base nodes that need to be
+	 * split or joined are only marked by the user operations and the
+	 * structural change is done by a task submitted to the executor. This
+	 * keeps the splits and joins out of the latency of the operations.
+	 * 
+	 * Every treap node stores the aggregates of its subtree for the given
+	 * aggregators (see Aggregators). They are computed when the node is
+	 * created, so updates get slower with each aggregator, and range
+	 * aggregates can then be read with rangeAggregate and aggregate.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public ImmDataCATreeMap(Comparator<? super K> comparator, UPDATE_MODE updateMode,
+			ContentionPolicy contentionPolicy, Executor maintenanceExecutor,
+			Aggregator<? super V, ?>... aggregators) {
+		if (contentionPolicy == null) {
+			throw new RuntimeException("A contention policy is required");
+		}
 		this.comparator = comparator;
+		this.updateMode = updateMode;
+		this.contentionPolicy = contentionPolicy;
+		this.maintenanceExecutor = maintenanceExecutor;
+		this.aggregators = aggregators == null || aggregators.length == 0 ? null : aggregators.clone();
+		this.root = createBaseNode();
+	}
+
+	public ContentionPolicy getContentionPolicy() {
+		return contentionPolicy;
 	}
 
 
-	//TODO rewrite this to make use of snapshot functionality
+	/*
+	 * The size of each base node is stored in the root of its treap, so
+	 * this only has to visit the base nodes and not their items.
+	 */
 	public int size() {
 		Stack<ImmutableTreapMapHolder<K, V>> nodes = lockBaseNodes(LOCKING_MODE.READ_LOCK);
-		int size = sizeHelper(root);
+		int size = ImmutableTreapMap.size(joinRootsOfLockedBaseNodes(nodes));
 		unlockBaseNodes(nodes, LOCKING_MODE.READ_LOCK);
 		return size;
 	}
 
+	/**
+	 * Returns the number of keys without locking or visiting the base
+	 * nodes. The value is exact when no updates are in progress and
+	 * approximate otherwise. The counter is changed after each update, so
+	 * a remove can be counted before the insert of the same key and the
+	 * sum can be temporarily negative. Such sums are returned as 0.
+	 */
+	public long estimatedSize() {
+		return Math.max(0, sizeCounter.sum());
+	}
+
+	/**
+	 * Uses the same counter as estimatedSize(), so the result is not
+	 * linearizable and is only exact when no updates are in progress.
+	 */
 	public boolean isEmpty() {
-		return size() == 0;
+		return sizeCounter.sum() <= 0;
 	}
 
 	public boolean containsKey(Object key) {
@@ -1106,39 +2017,90 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 		return get(key) != null;
 	}
 
+	/*
+	 * The lock of the base node is never touched. The root is immutable and
+	 * a base node is invalidated before any other base node can take over
+	 * its keys, so a root that was read while the base node was still valid
+	 * is the current content of the base node at the time of the read.
+	 */
 	@SuppressWarnings("unchecked")
 	public V get(Object key) {
 		while (true) {
 			ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) getBaseNode(key);
-			// First do an optimistic attempt
-			long optimisticReadToken = baseNode.getOptimisticReadToken();
-			if (0L != optimisticReadToken && baseNode.isValid()) {
-				ImmutableTreapValue<K, V> root = baseNode.getRoot();
-				if (baseNode.validateOptimisticReadToken(optimisticReadToken)) {
-					return ImmutableTreapMap.get(root, (K) key, comparator);
-				}
+			ImmutableTreapValue<K, V> root = baseNode.getRoot();
+			if (baseNode.isValid()) {
+				return ImmutableTreapMap.get(root, (K) key, comparator);
 			}
-			// Optimistic attempt failed, do the normal approach
-			baseNode.readLock();
-			baseNode.addToContentionStatistics();// Because the optimistic
-												 // attempt failed
-			// Check if valid
-			if (baseNode.isValid() == false) {
-				baseNode.readUnlock();
-				continue; // retry
+			// The base node is being replaced, give the replacing thread a
+			// chance to finish before retrying
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Calls consumer with each of the keys, which must be sorted, and its
+	 * value or null if the key is not present, in the order of the keys.
+	 * The route layer is traversed and the root read once for each run of
+	 * keys that belong to the same base node. The keys of one base node
+	 * are read atomically, but the operation as a whole is not atomic.
+	 */
+	@SuppressWarnings("unchecked")
+	public void getAll(List<? extends K> sortedKeys, BiConsumer<? super K, ? super V> consumer) {
+		Object[] keys = sortedKeys.toArray();
+		for (int i = 1; i < keys.length; i++) {
+			if (lessThan((K) keys[i], (K) keys[i - 1])) {
+				throw new RuntimeException("The keys must be sorted");
 			}
-			// Do the operation
+		}
+		int from = 0;
+		while (from < keys.length) {
+			ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) getBaseNode(keys[from]);
 			ImmutableTreapValue<K, V> root = baseNode.getRoot();
-			baseNode.readUnlock();
-			return ImmutableTreapMap.get(root, (K) key, comparator);
+			if (!baseNode.isValid()) {
+				// The base node is being replaced, see get
+				Thread.yield();
+				continue;
+			}
+			// The route bounds do not change while the base node is valid
+			K upperBound = (K) baseNode.getRouteUpperBound();
+			int to = from + 1;
+			while (to < keys.length && (upperBound == null || lessThan((K) keys[to], upperBound))) {
+				to++;
+			}
+			ImmutableTreapMap.getAllSorted(root, keys, from, to, comparator, consumer);
+			from = to;
 		}
 	}
 
+	/**
+	 * Returns the values of the keys, which must be sorted, in the same
+	 * order, with null for the keys that are not present. See
+	 * getAll(sortedKeys, consumer).
+	 */
+	public List<V> getAll(List<? extends K> sortedKeys) {
+		ArrayList<V> values = new ArrayList<V>(sortedKeys.size());
+		getAll(sortedKeys, (key, value) -> values.add(value));
+		return values;
+	}
+
 	public V put(K key, V value) {
+		if (updateMode == UPDATE_MODE.COMBINING) {
+			return countAdded(combiningUpdate(ImmutableTreapMapHolder.PUT, key, value));
+		}
 		while (true) {
 			@SuppressWarnings("unchecked")
 			ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) getBaseNode(key);
-			baseNode.lock();
+			if (updateMode == UPDATE_MODE.LOCK_FREE && !baseNode.isLocked()) {
+				int failedAttempts = baseNode.tryLockFreePut(key, value);
+				if (failedAttempts == ImmutableTreapMapHolder.FROZEN) {
+					continue; // Frozen, retry
+				}
+				@SuppressWarnings("unchecked")
+				V result = (V) ImmutableTreapMap.getPrevValue();
+				lockFreeAdaptIfNeeded(baseNode, failedAttempts);
+				return countAdded(result);
+			}
+			lockAndRecordContention(baseNode);
 			// Check if valid
 			if (!baseNode.isValid()) {
 				baseNode.unlock();
@@ -1148,15 +2110,28 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 			V result = baseNode.put(key, value);
 			adaptIfNeeded(baseNode);
 			baseNode.unlock();
-			return result;
+			return countAdded(result);
 		}
 	}
 
 	public V putIfAbsent(K key, V value) {
+		if (updateMode == UPDATE_MODE.COMBINING) {
+			return countAdded(combiningUpdate(ImmutableTreapMapHolder.PUT_IF_ABSENT, key, value));
+		}
 		while (true) {
 			@SuppressWarnings("unchecked")
 			ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) getBaseNode(key);
-			baseNode.lock();
+			if (updateMode == UPDATE_MODE.LOCK_FREE && !baseNode.isLocked()) {
+				int failedAttempts = baseNode.tryLockFreePutIfAbsent(key, value);
+				if (failedAttempts == ImmutableTreapMapHolder.FROZEN) {
+					continue; // Frozen, retry
+				}
+				@SuppressWarnings("unchecked")
+				V result = (V) ImmutableTreapMap.getPrevValue();
+				lockFreeAdaptIfNeeded(baseNode, failedAttempts);
+				return countAdded(result);
+			}
+			lockAndRecordContention(baseNode);
 			// Check if valid
 			if (!baseNode.isValid()) {
 				baseNode.unlock();
@@ -1166,15 +2141,27 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 			V result = baseNode.putIfAbsent(key, value);
 			adaptIfNeeded(baseNode);
 			baseNode.unlock();
-			return result;
+			return countAdded(result);
 		}
 	}
 
+	@SuppressWarnings("unchecked")
 	public V remove(Object key) {
+		if (updateMode == UPDATE_MODE.COMBINING) {
+			return countRemoved(combiningUpdate(ImmutableTreapMapHolder.REMOVE, (K) key, null));
+		}
 		while (true) {
-			@SuppressWarnings("unchecked")
 			ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) getBaseNode(key);
-			baseNode.lock();
+			if (updateMode == UPDATE_MODE.LOCK_FREE && !baseNode.isLocked()) {
+				int failedAttempts = baseNode.tryLockFreeRemove((K) key);
+				if (failedAttempts == ImmutableTreapMapHolder.FROZEN) {
+					continue; // Frozen, retry
+				}
+				V result = (V) ImmutableTreapMap.getPrevValue();
+				lockFreeAdaptIfNeeded(baseNode, failedAttempts);
+				return countRemoved(result);
+			}
+			lockAndRecordContention(baseNode);
 			// Check if valid
 			if (baseNode.isValid() == false) {
 				baseNode.unlock();
@@ -1184,36 +2171,675 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 			V result = baseNode.remove(key);
 			adaptIfNeeded(baseNode);
 			baseNode.unlock();
-			return result;
+			return countRemoved(result);
+		}
+	}
+
+	/**
+	 * Puts all entries of m. The entries are sorted and each base node is
+	 * locked once for all its keys instead of once per key. The entries
+	 * that go to the same base node are put atomically, but the operation
+	 * as a whole is not atomic.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		ArrayList<Map.Entry<? extends K, ? extends V>> entries = new ArrayList<Map.Entry<? extends K, ? extends V>>(
+				m.entrySet());
+		entries.sort((e1, e2) -> ImmutableTreapMap.compare(e1.getKey(), e2.getKey(), comparator));
+		// Keep the last of keys that are equal according to our comparator
+		Object[] keys = new Object[entries.size()];
+		Object[] values = new Object[entries.size()];
+		int size = 0;
+		for (Map.Entry<? extends K, ? extends V> entry : entries) {
+			if (size > 0 && ImmutableTreapMap.compare((K) keys[size - 1], entry.getKey(), comparator) == 0) {
+				size--;
+			}
+			keys[size] = entry.getKey();
+			values[size] = entry.getValue();
+			size++;
+		}
+		int from = 0;
+		while (from < size) {
+			ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) getBaseNode(keys[from]);
+			lockAndRecordContention(baseNode);
+			if (!baseNode.isValid()) {
+				baseNode.unlock();
+				continue; // retry
+			}
+			// The route bounds do not change while the base node is valid
+			K upperBound = (K) baseNode.getRouteUpperBound();
+			int to = from + 1;
+			while (to < size && (upperBound == null || lessThan((K) keys[to], upperBound))) {
+				to++;
+			}
+			sizeCounter.add(baseNode.putAllSorted(keys, values, from, to));
+			if (updateMode == UPDATE_MODE.COMBINING) {
+				baseNode.combine(); // Help waiting requests
+			}
+			adaptIfNeeded(baseNode);
+			baseNode.unlock();
+			from = to;
 		}
 	}
 
 	public void clear() {
 		Stack<ImmutableTreapMapHolder<K, V>> nodes =lockBaseNodes(LOCKING_MODE.WRITE_LOCK);
-		root = new ImmutableTreapMapHolder<K, V>();
 		Object[] ns = nodes.getStackArray();
 		for(int i = 0; i < nodes.size(); i++ ) {
 			@SuppressWarnings("unchecked")
 			ImmutableTreapMapHolder<K, V> node = (ImmutableTreapMapHolder<K, V>) ns[i];
+			node.freeze();
 			node.invalidate();
+			// Frozen, so the size can not change anymore
+			sizeCounter.add(-node.size());
 		}
+		root = createBaseNode();
+		numberOfBaseNodes.set(1);
+		baseNodeIndex = null;
+		baseNodeIndexChanges.set(0);
 		unlockBaseNodes(nodes, LOCKING_MODE.WRITE_LOCK);
 	}
 	
-	// Set<K> keySet();
-	// Collection<V> values();
-	// TODO this should preserve order make use of snapshot capability 
+	/*
+	 * The views below take a snapshot when they are read, so iteration is
+	 * ordered, does not copy the items and does not hold any locks.
+	 */
 	public Set<Map.Entry<K, V>> entrySet() {
-		LinkedList<Map.Entry<K, V>> list = new LinkedList<Map.Entry<K, V>>();
-		Stack<ImmutableTreapMapHolder<K, V>> nodes =lockBaseNodes(LOCKING_MODE.READ_LOCK);
-		addAllToList(root, list);
-		unlockBaseNodes(nodes, LOCKING_MODE.READ_LOCK);
-		return new HashSet<Map.Entry<K, V>>(list);
+		return new AbstractSet<Map.Entry<K, V>>() {
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return snapshotIterator(snapshot());
+			}
+
+			/* Splits at the base nodes first and then in the treaps */
+			@Override
+			public Spliterator<Map.Entry<K, V>> spliterator() {
+				return snapshot().entrySet().spliterator();
+			}
+
+			@Override
+			public int size() {
+				return ImmDataCATreeMap.this.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return ImmDataCATreeMap.this.isEmpty();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof Map.Entry)) {
+					return false;
+				}
+				Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+				V value = get(entry.getKey());
+				return value != null && value.equals(entry.getValue());
+			}
+		};
+	}
+
+	/*
+	 * Iterates over a snapshot. Removals through the iterator are done in
+	 * the map.
+	 */
+	Iterator<Map.Entry<K, V>> snapshotIterator(NavigableMap<K, V> snapshot) {
+		final Iterator<Map.Entry<K, V>> entries = snapshot.entrySet().iterator();
+		return new Iterator<Map.Entry<K, V>>() {
+			private K lastKey = null;
+
+			@Override
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+
+			@Override
+			public Map.Entry<K, V> next() {
+				Map.Entry<K, V> entry = entries.next();
+				lastKey = entry.getKey();
+				return entry;
+			}
+
+			@Override
+			public void remove() {
+				if (lastKey == null) {
+					throw new IllegalStateException();
+				}
+				ImmDataCATreeMap.this.remove(lastKey);
+				lastKey = null;
+			}
+		};
 	}
 	
 	// 0 = write lock directly
 	// 1 = read lock directly
 
+	// === Order statistics ========================
+
+	/*
+	 * The treap nodes store the sizes of their subtrees, so these only
+	 * need to visit the base nodes that are involved and one path in each
+	 * treap. The route layer does not store sizes, so select first walks
+	 * the base nodes from the left without locking to find how far the
+	 * keys up to the rank go, and then only snapshots the base nodes up
+	 * to there. The cost is proportional to the number of base nodes
+	 * before the selected key instead of all base nodes.
+	 */
+
+	/**
+	 * Returns the number of keys that are less than key.
+	 */
+	public int rank(K key) {
+		return ImmutableTreapMap.rank(rangeSnapshot(null, key), key, false, comparator);
+	}
+
+	/**
+	 * Returns the key with the given rank (the smallest key has rank 0) or
+	 * null if the map does not contain more than rank keys.
+	 */
+	public K select(int rank) {
+		if (rank < 0) {
+			return null;
+		}
+		K hi = selectUpperBoundEstimate(rank);
+		ImmutableTreapValue<K, V> prefix = rangeSnapshot(null, hi);
+		// The snapshot is all keys below some route bound, so if it has
+		// more than rank keys it contains the selected key
+		if (hi != null && ImmutableTreapMap.size(prefix) <= rank) {
+			// The map changed after the estimate
+			prefix = rangeSnapshot(null, null);
+		}
+		return ImmutableTreapMap.select(prefix, rank);
+	}
+
+	/*
+	 * Returns the largest key of the first base node where the number of
+	 * keys in it and the base nodes before it exceeds rank, or null if
+	 * there is no such base node. No locks are taken, so the result is
+	 * only an estimate if the map is modified concurrently.
+	 */
+	private K selectUpperBoundEstimate(int rank) {
+		Stack<RouteNode> stack = new Stack<RouteNode>();
+		ImmutableTreapMapHolder<K, V> baseNode = getFirstBaseNodeAndStack(stack);
+		long keys = 0;
+		while (baseNode != null) {
+			ImmutableTreapValue<K, V> root = baseNode.getRoot();
+			keys += ImmutableTreapMap.size(root);
+			if (keys > rank) {
+				return ImmutableTreapMap.maxKey(root);
+			}
+			baseNode = getNextBaseNodeAndStack(baseNode, stack);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of keys that are greater than or equal to lo and
+	 * less than or equal to hi.
+	 */
+	public int countInRange(K lo, K hi) {
+		ImmutableTreapValue<K, V> snapshot = rangeSnapshot(lo, hi);
+		int count = ImmutableTreapMap.rank(snapshot, hi, true, comparator)
+				- ImmutableTreapMap.rank(snapshot, lo, false, comparator);
+		return Math.max(count, 0);
+	}
+
+	// === Snapshots ===============================
+
+	/**
+	 * Returns a read-only snapshot of the map. The snapshot is taken
+	 * atomically in time proportional to the number of base nodes, and
+	 * reading or iterating it does not take any locks.
+	 */
+	public NavigableMap<K, V> snapshot() {
+		return new ImmutableTreapSnapshot<K, V>(rangeSnapshot(null, null), comparator);
+	}
+
+	/**
+	 * Returns a read-only snapshot of the items with keys in [lo, hi]. null
+	 * as lo or hi means no bound. Only the base nodes that are involved are
+	 * visited when the snapshot is taken.
+	 */
+	public NavigableMap<K, V> snapshot(K lo, K hi) {
+		NavigableMap<K, V> snapshot = new ImmutableTreapSnapshot<K, V>(rangeSnapshot(lo, hi), comparator);
+		/* The base nodes may contain keys outside [lo, hi] */
+		if (lo != null) {
+			snapshot = snapshot.tailMap(lo, true);
+		}
+		if (hi != null) {
+			snapshot = snapshot.headMap(hi, true);
+		}
+		return snapshot;
+	}
+
+	// === Weakly consistent iteration =============
+
+	/*
+	 * Returns true if key (null = the smallest possible key) is in the
+	 * route range of the base node
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean routeRangeContains(ImmutableTreapMapHolder<K, V> baseNode, K key) {
+		K lower = (K) baseNode.getRouteLowerBound();
+		K upper = (K) baseNode.getRouteUpperBound();
+		if (key == null) {
+			return lower == null;
+		}
+		return (lower == null || !lessThan(key, lower)) && (upper == null || lessThan(key, upper));
+	}
+
+	/**
+	 * Returns a weakly consistent iterator over the items in key order.
+	 * The iterator reads the root of one base node at a time, so it never
+	 * blocks writers and its memory use does not depend on the size of the
+	 * map. It returns each key at most once and reflects the state of the
+	 * map at some point at or after its creation, like the iterators of
+	 * ConcurrentSkipListMap.
+	 */
+	public Iterator<Map.Entry<K, V>> weaklyConsistentIterator() {
+		return new WeaklyConsistentIterator(null, null);
+	}
+
+	/**
+	 * Like weaklyConsistentIterator() but only returns the items with keys
+	 * in [lo, hi]. null as lo or hi means no bound.
+	 */
+	public Iterator<Map.Entry<K, V>> weaklyConsistentIterator(K lo, K hi) {
+		return new WeaklyConsistentIterator(lo, hi);
+	}
+
+	/*
+	 * Iterates over the root of one base node at a time. The root is read
+	 * like in get, so no locks are taken. The next base node is found with
+	 * getNextBaseNodeAndStack. That walk can go wrong if the route layer
+	 * around the previous base node changes, so the route bounds of each
+	 * base node are checked to continue where the previous one ended and
+	 * the base node is searched for from the root otherwise. Keys that are
+	 * not greater than the last returned key are always skipped, so keys
+	 * that moved to another base node are not returned twice.
+	 */
+	private final class WeaklyConsistentIterator implements Iterator<Map.Entry<K, V>> {
+		private final Stack<RouteNode> stack = new Stack<RouteNode>();
+		private final K hi;
+		private ImmutableTreapMapHolder<K, V> baseNode;
+		private ImmutableTreapMap.RankIterator<K, V> chunk;
+		/* The start of the part of the route range that is not done yet */
+		private K routeKey;
+		private boolean done = false;
+		/* The key to start after, or (for the first chunk) at if lo */
+		private K seekKey;
+		private boolean seekKeyInclusive;
+		private K lastKey = null;
+
+		WeaklyConsistentIterator(K lo, K hi) {
+			this.hi = hi;
+			this.routeKey = lo;
+			this.seekKey = lo;
+			this.seekKeyInclusive = lo != null;
+			this.baseNode = lo == null ? getFirstBaseNodeAndStack(stack) : getBaseNodeAndStack(lo, stack);
+			findNextChunk();
+		}
+
+		@SuppressWarnings("unchecked")
+		private void findNextChunk() {
+			chunk = null;
+			while (!done) {
+				if (baseNode != null) {
+					ImmutableTreapValue<K, V> root = baseNode.getRoot();
+					if (baseNode.isValid() && routeRangeContains(baseNode, routeKey)) {
+						int from = seekKey == null ? 0
+								: ImmutableTreapMap.rank(root, seekKey, !seekKeyInclusive, comparator);
+						int to = hi == null ? ImmutableTreapMap.size(root)
+								: ImmutableTreapMap.rank(root, hi, true, comparator);
+						K upper = (K) baseNode.getRouteUpperBound();
+						if (upper == null || (hi != null && lessThan(hi, upper))) {
+							done = true;
+						} else {
+							routeKey = upper;
+							baseNode = getNextBaseNodeAndStack(baseNode, stack);
+						}
+						if (from < to) {
+							chunk = new ImmutableTreapMap.RankIterator<K, V>(root, from, to, false);
+							return;
+						}
+						continue;
+					}
+					if (!baseNode.isValid()) {
+						// The base node is being replaced, give the
+						// replacing thread a chance to finish
+						Thread.yield();
+					}
+				}
+				stack.resetStack();
+				baseNode = routeKey == null ? getFirstBaseNodeAndStack(stack) : getBaseNodeAndStack(routeKey, stack);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return chunk != null;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (chunk == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K, V> entry = chunk.next();
+			lastKey = entry.getKey();
+			if (!chunk.hasNext()) {
+				seekKey = lastKey;
+				seekKeyInclusive = false;
+				findNextChunk();
+			}
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			if (lastKey == null) {
+				throw new IllegalStateException();
+			}
+			ImmDataCATreeMap.this.remove(lastKey);
+			lastKey = null;
+		}
+	}
+
+	// === Bulk operations =========================
+
+	/**
+	 * SNAPSHOT: the bulk operation sees the items at one point in time.
+	 * Taking the snapshot visits the base nodes once before the work
+	 * starts.
+	 *
+	 * WEAKLY_CONSISTENT: the root of each base node is read when the task
+	 * that handles it starts, so the operation sees each part of the map
+	 * at some point during the operation, like the bulk operations of
+	 * ConcurrentHashMap.
+	 */
+	public static enum BULK_MODE {
+		SNAPSHOT,
+		WEAKLY_CONSISTENT;
+	}
+
+	/*
+	 * The bulk operations split the work at the base nodes and then at the
+	 * internal nodes of the treaps, and fork the parts that have more
+	 * items than parallelismThreshold to the common ForkJoinPool. The
+	 * treaps are immutable, so the tasks do not take any locks.
+	 * Long.MAX_VALUE as parallelismThreshold makes the operation run in
+	 * the calling thread.
+	 */
+
+	/**
+	 * Calls action with each item in key order if parallelismThreshold is
+	 * not exceeded and in unspecified order otherwise.
+	 */
+	public void forEach(long parallelismThreshold, BiConsumer<? super K, ? super V> action) {
+		forEach(parallelismThreshold, null, null, BULK_MODE.SNAPSHOT, action);
+	}
+
+	/**
+	 * Like forEach(long, BiConsumer) but only for the items with keys in
+	 * [lo, hi]. null as lo or hi means no bound.
+	 */
+	public void forEach(long parallelismThreshold, K lo, K hi, BULK_MODE mode,
+			BiConsumer<? super K, ? super V> action) {
+		new BulkTask<K, V, Object>(bulkSpliterator(lo, hi, mode), parallelismThreshold, (part) -> {
+			BulkTask.forEachItem(part, action);
+			return null;
+		}, null, null).invoke();
+	}
+
+	/**
+	 * Returns a non-null result of searchFunction for some item or null if
+	 * searchFunction returns null for all items. The search stops when a
+	 * result has been found.
+	 */
+	public <U> U search(long parallelismThreshold, BiFunction<? super K, ? super V, ? extends U> searchFunction) {
+		return search(parallelismThreshold, null, null, BULK_MODE.SNAPSHOT, searchFunction);
+	}
+
+	/**
+	 * Like search(long, BiFunction) but only for the items with keys in
+	 * [lo, hi]. null as lo or hi means no bound.
+	 */
+	public <U> U search(long parallelismThreshold, K lo, K hi, BULK_MODE mode,
+			BiFunction<? super K, ? super V, ? extends U> searchFunction) {
+		AtomicReference<U> found = new AtomicReference<U>();
+		new BulkTask<K, V, U>(bulkSpliterator(lo, hi, mode), parallelismThreshold,
+				BulkTask.searching(searchFunction, found), null, found).invoke();
+		return found.get();
+	}
+
+	/**
+	 * Returns the result of combining the non-null results of transformer
+	 * for all items with reducer, or null if there are none. The results
+	 * are combined in key order, so reducer only needs to be associative.
+	 */
+	public <U> U reduce(long parallelismThreshold, BiFunction<? super K, ? super V, ? extends U> transformer,
+			BiFunction<? super U, ? super U, ? extends U> reducer) {
+		return reduce(parallelismThreshold, null, null, BULK_MODE.SNAPSHOT, transformer, reducer);
+	}
+
+	/**
+	 * Like reduce(long, BiFunction, BiFunction) but only for the items with
+	 * keys in [lo, hi]. null as lo or hi means no bound.
+	 */
+	public <U> U reduce(long parallelismThreshold, K lo, K hi, BULK_MODE mode,
+			BiFunction<? super K, ? super V, ? extends U> transformer,
+			BiFunction<? super U, ? super U, ? extends U> reducer) {
+		return new BulkTask<K, V, U>(bulkSpliterator(lo, hi, mode), parallelismThreshold,
+				BulkTask.reducing(transformer, reducer), reducer, null).invoke();
+	}
+
+	private Spliterator<Map.Entry<K, V>> bulkSpliterator(K lo, K hi, BULK_MODE mode) {
+		if (mode == BULK_MODE.WEAKLY_CONSISTENT) {
+			return new BaseNodeSpliterator(lo, hi);
+		}
+		return snapshot(lo, hi).entrySet().spliterator();
+	}
+
+	/*
+	 * Splits at the base nodes that were in the range when it was created.
+	 * The root of a base node is read first when the spliterator gets down
+	 * to it, and the route range of the base node is read with
+	 * rangeSnapshot instead if the base node has been replaced by then.
+	 * The base nodes are found like in WeaklyConsistentIterator, so their
+	 * route ranges cover [lo, hi] without gaps or overlaps.
+	 */
+	private final class BaseNodeSpliterator implements ImmutableTreapMap.ItemSpliterator<K, V> {
+		private final K lo;
+		private final K hi;
+		private final Object[] baseNodes;
+		/* baseNodes[i] is read from routeKeys[i] to routeKeys[i + 1] */
+		private final Object[] routeKeys;
+		/* The sizes of the base nodes when they were found */
+		private final long[] sizesBefore;
+		private int fromIndex;
+		private final int toIndex;
+		private ImmutableTreapMap.RankSpliterator<K, V> current = null;
+
+		@SuppressWarnings("unchecked")
+		BaseNodeSpliterator(K lo, K hi) {
+			this.lo = lo;
+			this.hi = hi;
+			ArrayList<ImmutableTreapMapHolder<K, V>> nodes = new ArrayList<ImmutableTreapMapHolder<K, V>>();
+			ArrayList<K> keys = new ArrayList<K>();
+			Stack<RouteNode> stack = new Stack<RouteNode>();
+			K routeKey = lo;
+			ImmutableTreapMapHolder<K, V> baseNode = lo == null ? getFirstBaseNodeAndStack(stack)
+					: getBaseNodeAndStack(lo, stack);
+			while (true) {
+				if (baseNode != null && baseNode.isValid() && routeRangeContains(baseNode, routeKey)) {
+					nodes.add(baseNode);
+					keys.add(routeKey);
+					K upper = (K) baseNode.getRouteUpperBound();
+					if (upper == null || (hi != null && lessThan(hi, upper))) {
+						keys.add(upper);
+						break;
+					}
+					routeKey = upper;
+					baseNode = getNextBaseNodeAndStack(baseNode, stack);
+					continue;
+				}
+				if (baseNode != null && !baseNode.isValid()) {
+					// The base node is being replaced, give the replacing
+					// thread a chance to finish
+					Thread.yield();
+				}
+				stack.resetStack();
+				baseNode = routeKey == null ? getFirstBaseNodeAndStack(stack) : getBaseNodeAndStack(routeKey, stack);
+			}
+			this.baseNodes = nodes.toArray();
+			this.routeKeys = keys.toArray();
+			this.sizesBefore = new long[baseNodes.length + 1];
+			for (int i = 0; i < baseNodes.length; i++) {
+				sizesBefore[i + 1] = sizesBefore[i]
+						+ ImmutableTreapMap.size(((ImmutableTreapMapHolder<K, V>) baseNodes[i]).getRoot());
+			}
+			this.fromIndex = 0;
+			this.toIndex = baseNodes.length;
+		}
+
+		private BaseNodeSpliterator(BaseNodeSpliterator parent, int fromIndex, int toIndex) {
+			this.lo = parent.lo;
+			this.hi = parent.hi;
+			this.baseNodes = parent.baseNodes;
+			this.routeKeys = parent.routeKeys;
+			this.sizesBefore = parent.sizesBefore;
+			this.fromIndex = fromIndex;
+			this.toIndex = toIndex;
+		}
+
+		/* Reads the items of the base node at index */
+		@SuppressWarnings("unchecked")
+		private ImmutableTreapMap.RankSpliterator<K, V> readBaseNode(int index) {
+			ImmutableTreapMapHolder<K, V> baseNode = (ImmutableTreapMapHolder<K, V>) baseNodes[index];
+			K lower = (K) routeKeys[index];
+			K upper = (K) routeKeys[index + 1];
+			ImmutableTreapValue<K, V> root = baseNode.getRoot();
+			if (!baseNode.isValid()) {
+				root = rangeSnapshot(lower, upper);
+			}
+			int from = lower == null ? 0 : ImmutableTreapMap.rank(root, lower, false, comparator);
+			int to = upper == null ? ImmutableTreapMap.size(root)
+					: ImmutableTreapMap.rank(root, upper, false, comparator);
+			if (hi != null) {
+				to = Math.min(to, ImmutableTreapMap.rank(root, hi, true, comparator));
+			}
+			return new ImmutableTreapMap.RankSpliterator<K, V>(root, from, to, comparator);
+		}
+
+		private ImmutableTreapMap.RankSpliterator<K, V> current() {
+			if (current == null && fromIndex < toIndex) {
+				current = readBaseNode(fromIndex);
+				fromIndex++;
+			}
+			return current;
+		}
+
+		@Override
+		public Spliterator<Map.Entry<K, V>> trySplit() {
+			if (current == null && toIndex - fromIndex > 1) {
+				int middle = (fromIndex + toIndex) >>> 1;
+				BaseNodeSpliterator prefix = new BaseNodeSpliterator(this, fromIndex, middle);
+				fromIndex = middle;
+				return prefix;
+			}
+			/* Only one base node left, split its treap */
+			if (current == null && fromIndex == toIndex - 1) {
+				return current().trySplit();
+			}
+			if (current != null && fromIndex == toIndex) {
+				return current.trySplit();
+			}
+			return null;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+			while (current() != null) {
+				if (current.tryAdvance(action)) {
+					return true;
+				}
+				current = null;
+			}
+			return false;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super Map.Entry<K, V>> action) {
+			while (current() != null) {
+				current.forEachRemaining(action);
+				current = null;
+			}
+		}
+
+		@Override
+		public void forEachRemainingItem(BiConsumer<? super K, ? super V> action) {
+			while (current() != null) {
+				current.forEachRemainingItem(action);
+				current = null;
+			}
+		}
+
+		@Override
+		public long estimateSize() {
+			long size = sizesBefore[toIndex] - sizesBefore[fromIndex];
+			return current == null ? size : size + current.estimateSize();
+		}
+
+		@Override
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL
+					| Spliterator.CONCURRENT;
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public Comparator<? super Map.Entry<K, V>> getComparator() {
+			if (comparator == null) {
+				return (Comparator) Map.Entry.comparingByKey();
+			}
+			return Map.Entry.comparingByKey(comparator);
+		}
+	}
+
+	// === Range aggregates ========================
+
+	/**
+	 * Returns the handle for aggregator, which must be one of the
+	 * aggregators given to the constructor (the same object).
+	 */
+	public <A> RangeAggregate<A> rangeAggregate(Aggregator<? super V, A> aggregator) {
+		if (aggregators != null) {
+			for (int i = 0; i < aggregators.length; i++) {
+				if (aggregators[i] == aggregator) {
+					return new RangeAggregate<A>(this, i, aggregator);
+				}
+			}
+		}
+		throw new RuntimeException("The aggregator was not given when the map was created");
+	}
+
+	/**
+	 * Returns the aggregate of the values of the keys in [lo, hi] for the
+	 * aggregator of rangeAggregate. null as lo or hi means no bound. Only
+	 * the paths to lo and hi in each base node are visited, the subtrees
+	 * between them are represented by the aggregates stored in their
+	 * roots.
+	 */
+	@SuppressWarnings("unchecked")
+	public <A> A aggregate(K lo, K hi, RangeAggregate<A> rangeAggregate) {
+		if (rangeAggregate.map != this) {
+			throw new RuntimeException("The RangeAggregate belongs to another map");
+		}
+		return ImmutableTreapMap.aggregate(rangeSnapshot(lo, hi), lo, hi, rangeAggregate.index,
+				(Aggregator<? super V, A>) rangeAggregate.aggregator, comparator);
+	}
+
 	public final Object[] subSet(final K lo, final K hi) {
 		Stack<Object> returnStack = threadLocalBuffers.get().getKeyReturnStack();
 		subSet(lo, hi, (k) -> returnStack.push(k));
@@ -1239,6 +2865,38 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 			ImmutableTreapMap.traverseKeysInRange(returnValue, lo, hi, consumer, comparator);
 		}
 	}
+
+	/**
+	 * Like subSet(lo, hi, consumer), but the traversal is split at the base
+	 * nodes and then in the treaps, and parts with more than
+	 * parallelismThreshold keys are handled by the common ForkJoinPool.
+	 * The base nodes are still captured atomically, but consumer can be
+	 * called from several threads at the same time and not in key order.
+	 */
+	public void subSet(final K lo, final K hi, long parallelismThreshold, Consumer<K> consumer) {
+		threadLocalBuffers.get().increaseRangeQueries();
+		forEach(parallelismThreshold, lo, hi, BULK_MODE.SNAPSHOT, (k, v) -> consumer.accept(k));
+	}
+
+	/**
+	 * Collects the keys in [lo, hi] with collector. The range is split and
+	 * handled in parallel as in subSet(lo, hi, parallelismThreshold,
+	 * consumer). Each part gets its own result container, and the
+	 * containers are combined in key order, so the collector does not need
+	 * to be concurrent.
+	 */
+	public <A, R> R subSet(final K lo, final K hi, long parallelismThreshold, Collector<? super K, A, R> collector) {
+		threadLocalBuffers.get().increaseRangeQueries();
+		Supplier<A> supplier = collector.supplier();
+		BiConsumer<A, ? super K> accumulator = collector.accumulator();
+		A result = new BulkTask<K, V, A>(bulkSpliterator(lo, hi, BULK_MODE.SNAPSHOT), parallelismThreshold,
+				(part) -> {
+					A container = supplier.get();
+					BulkTask.forEachItem(part, (k, v) -> accumulator.accept(container, k));
+					return container;
+				}, collector.combiner(), null).invoke();
+		return collector.finisher().apply(result);
+	}
 	
 
 	
@@ -1334,8 +2992,7 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 
 	@Override
 	public Comparator<? super K> comparator() {
-		// TODO Auto-generated method stub
-		return null;
+		return comparator;
 	}
 
 	@Override
@@ -1394,20 +3051,17 @@ public class ImmDataCATreeMap<K, V> extends AbstractMap<K, V> implements Concurr
 
 	@Override
 	public NavigableSet<K> navigableKeySet() {
-		// TODO Auto-generated method stub
-		return null;
+		return new ImmDataCATreeMapKeySet<K, V>(this, comparator);
 	}
 
 	@Override
 	public NavigableSet<K> keySet() {
-		// TODO Auto-generated method stub
-		return null;
+		return navigableKeySet();
 	}
 
 	@Override
 	public NavigableSet<K> descendingKeySet() {
-		// TODO Auto-generated method stub
-		return null;
+		return navigableKeySet().descendingSet();
 	}
   
 }
@@ -0,0 +1,296 @@
+/*
+ *  Copyright 2018 Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ *  This file is part of catrees.
+ *
+ *  catrees is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  catrees is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with catrees.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.winsh.ds.concurrent.catrees;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.SortedSet;
+import java.util.Spliterator;
+
+import me.winsh.ds.immutable.ImmutableTreapMap;
+
+/**
+ * The key set of an ImmDataCATreeMap (or of a range of it). Removals are
+ * done in the map. Every read takes a snapshot of the base nodes in the
+ * range, so iterators see the keys at one point in time and do not hold
+ * any locks.
+ */
+final class ImmDataCATreeMapKeySet<K, V> extends AbstractSet<K> implements NavigableSet<K> {
+
+	private final ImmDataCATreeMap<K, V> map;
+	private final Comparator<? super K> comparator;
+	/* null as lo or hi means no bound */
+	private final K lo;
+	private final boolean loInclusive;
+	private final K hi;
+	private final boolean hiInclusive;
+	private final boolean descending;
+
+	ImmDataCATreeMapKeySet(ImmDataCATreeMap<K, V> map, Comparator<? super K> comparator) {
+		this(map, comparator, null, true, null, true, false);
+	}
+
+	private ImmDataCATreeMapKeySet(ImmDataCATreeMap<K, V> map, Comparator<? super K> comparator, K lo,
+			boolean loInclusive, K hi, boolean hiInclusive, boolean descending) {
+		this.map = map;
+		this.comparator = comparator;
+		this.lo = lo;
+		this.loInclusive = loInclusive;
+		this.hi = hi;
+		this.hiInclusive = hiInclusive;
+		this.descending = descending;
+	}
+
+	private boolean isUnbounded() {
+		return lo == null && hi == null;
+	}
+
+	private NavigableMap<K, V> snapshot() {
+		NavigableMap<K, V> snapshot = map.snapshot(lo, hi);
+		if (lo != null && !loInclusive) {
+			snapshot = snapshot.tailMap(lo, false);
+		}
+		if (hi != null && !hiInclusive) {
+			snapshot = snapshot.headMap(hi, false);
+		}
+		return descending ? snapshot.descendingMap() : snapshot;
+	}
+
+	private NavigableSet<K> snapshotKeys() {
+		return snapshot().navigableKeySet();
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean inRange(Object key) {
+		if (lo != null) {
+			int c = ImmutableTreapMap.compare((K) key, lo, comparator);
+			if (c < 0 || (c == 0 && !loInclusive)) {
+				return false;
+			}
+		}
+		if (hi != null) {
+			int c = ImmutableTreapMap.compare((K) key, hi, comparator);
+			if (c > 0 || (c == 0 && !hiInclusive)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Creates a view of the intersection of this range and [newLo, newHi]
+	 * (given in ascending order)
+	 */
+	private ImmDataCATreeMapKeySet<K, V> subView(K newLo, boolean newLoInclusive, K newHi, boolean newHiInclusive) {
+		K resultLo = lo;
+		boolean resultLoInclusive = loInclusive;
+		if (newLo != null) {
+			int c = lo == null ? 1 : ImmutableTreapMap.compare(newLo, lo, comparator);
+			if (c > 0) {
+				resultLo = newLo;
+				resultLoInclusive = newLoInclusive;
+			} else if (c == 0) {
+				resultLoInclusive = loInclusive && newLoInclusive;
+			}
+		}
+		K resultHi = hi;
+		boolean resultHiInclusive = hiInclusive;
+		if (newHi != null) {
+			int c = hi == null ? -1 : ImmutableTreapMap.compare(newHi, hi, comparator);
+			if (c < 0) {
+				resultHi = newHi;
+				resultHiInclusive = newHiInclusive;
+			} else if (c == 0) {
+				resultHiInclusive = hiInclusive && newHiInclusive;
+			}
+		}
+		return new ImmDataCATreeMapKeySet<K, V>(map, comparator, resultLo, resultLoInclusive, resultHi,
+				resultHiInclusive, descending);
+	}
+
+	// === Set =====================================
+
+	@Override
+	public Iterator<K> iterator() {
+		final Iterator<Map.Entry<K, V>> entries = map.snapshotIterator(snapshot());
+		return new Iterator<K>() {
+			@Override
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+
+			@Override
+			public K next() {
+				return entries.next().getKey();
+			}
+
+			@Override
+			public void remove() {
+				entries.remove();
+			}
+		};
+	}
+
+	@Override
+	public Spliterator<K> spliterator() {
+		return snapshotKeys().spliterator();
+	}
+
+	@Override
+	public int size() {
+		return isUnbounded() ? map.size() : snapshot().size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return isUnbounded() ? map.isEmpty() : snapshot().isEmpty();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return inRange(o) && map.containsKey(o);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		return inRange(o) && map.remove(o) != null;
+	}
+
+	// === NavigableSet ============================
+
+	@Override
+	public Comparator<? super K> comparator() {
+		if (descending) {
+			return Collections.reverseOrder(comparator);
+		}
+		return comparator;
+	}
+
+	@Override
+	public K first() {
+		return snapshotKeys().first();
+	}
+
+	@Override
+	public K last() {
+		return snapshotKeys().last();
+	}
+
+	@Override
+	public K lower(K key) {
+		return snapshotKeys().lower(key);
+	}
+
+	@Override
+	public K floor(K key) {
+		return snapshotKeys().floor(key);
+	}
+
+	@Override
+	public K ceiling(K key) {
+		return snapshotKeys().ceiling(key);
+	}
+
+	@Override
+	public K higher(K key) {
+		return snapshotKeys().higher(key);
+	}
+
+	@Override
+	public K pollFirst() {
+		while (true) {
+			NavigableSet<K> keys = snapshotKeys();
+			if (keys.isEmpty()) {
+				return null;
+			}
+			K key = keys.first();
+			/* Retry if another thread removed the key first */
+			if (map.remove(key) != null) {
+				return key;
+			}
+		}
+	}
+
+	@Override
+	public K pollLast() {
+		return descendingSet().pollFirst();
+	}
+
+	@Override
+	public NavigableSet<K> descendingSet() {
+		return new ImmDataCATreeMapKeySet<K, V>(map, comparator, lo, loInclusive, hi, hiInclusive, !descending);
+	}
+
+	@Override
+	public Iterator<K> descendingIterator() {
+		return descendingSet().iterator();
+	}
+
+	@Override
+	public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+		int c = ImmutableTreapMap.compare(fromElement, toElement, comparator);
+		if (descending ? c < 0 : c > 0) {
+			throw new IllegalArgumentException("fromElement > toElement");
+		}
+		if (descending) {
+			return subView(toElement, toInclusive, fromElement, fromInclusive);
+		} else {
+			return subView(fromElement, fromInclusive, toElement, toInclusive);
+		}
+	}
+
+	@Override
+	public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+		if (descending) {
+			return subView(toElement, inclusive, null, true);
+		} else {
+			return subView(null, true, toElement, inclusive);
+		}
+	}
+
+	@Override
+	public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+		if (descending) {
+			return subView(null, true, fromElement, inclusive);
+		} else {
+			return subView(fromElement, inclusive, null, true);
+		}
+	}
+
+	@Override
+	public SortedSet<K> subSet(K fromElement, K toElement) {
+		return subSet(fromElement, true, toElement, false);
+	}
+
+	@Override
+	public SortedSet<K> headSet(K toElement) {
+		return headSet(toElement, false);
+	}
+
+	@Override
+	public SortedSet<K> tailSet(K fromElement) {
+		return tailSet(fromElement, true);
+	}
+}
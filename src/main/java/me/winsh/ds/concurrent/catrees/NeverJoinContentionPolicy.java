@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2018 Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ *  This file is part of catrees.
+ *
+ *  catrees is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  catrees is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with catrees.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.winsh.ds.concurrent.catrees;
+
+import me.winsh.ds.mutable.ImmutableTreapMapHolder;
+
+/**
+ * Splits like DefaultContentionPolicy but never joins base nodes. Useful
+ * for maps whose contention pattern is stable, where the granularity that
+ * has been reached should be kept during quiet periods.
+ */
+public class NeverJoinContentionPolicy extends DefaultContentionPolicy {
+
+	public NeverJoinContentionPolicy() {
+		super();
+	}
+
+	public NeverJoinContentionPolicy(int highContentionLimit, int contendedContrib) {
+		super(highContentionLimit, Integer.MIN_VALUE, contendedContrib, DEFAULT_UNCONTENDED_CONTRIB,
+				DEFAULT_MULTI_BASE_NODE_CONTRIB);
+	}
+
+	@Override
+	public void recordUncontended(ImmutableTreapMapHolder<?, ?> baseNode) {
+		// Do not let the statistics drift below zero as nothing happens there
+		int statistics = baseNode.getStatistics();
+		if (statistics > 0) {
+			baseNode.setStatistics(statistics - uncontendedContrib);
+		}
+	}
+
+	@Override
+	public void recordMultiBaseNodeAccess(ImmutableTreapMapHolder<?, ?> baseNode) {
+		baseNode.setStatistics(Math.max(0, baseNode.getStatistics() - multiBaseNodeContrib));
+	}
+
+	@Override
+	public boolean shouldJoin(ImmutableTreapMapHolder<?, ?> baseNode, int numberOfBaseNodes) {
+		return false;
+	}
+
+}
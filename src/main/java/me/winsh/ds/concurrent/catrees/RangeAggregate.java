@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2018 Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ *  This file is part of catrees.
+ *
+ *  catrees is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  catrees is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with catrees.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.winsh.ds.concurrent.catrees;
+
+import me.winsh.ds.immutable.ImmutableTreapMap.Aggregator;
+
+/**
+ * A handle for an aggregator that was given when an ImmDataCATreeMap was
+ * created. It is returned by ImmDataCATreeMap.rangeAggregate and can only
+ * be used with the map that returned it.
+ */
+public final class RangeAggregate<A> {
+
+	final ImmDataCATreeMap<?, ?> map;
+
+	// The position of the aggregator among the aggregators of the map
+	final int index;
+
+	final Aggregator<?, A> aggregator;
+
+	RangeAggregate(ImmDataCATreeMap<?, ?> map, int index, Aggregator<?, A> aggregator) {
+		this.map = map;
+		this.index = index;
+		this.aggregator = aggregator;
+	}
+}
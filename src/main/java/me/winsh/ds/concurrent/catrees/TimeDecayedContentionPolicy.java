@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2018 Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ *  This file is part of catrees.
+ *
+ *  catrees is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  catrees is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with catrees.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.winsh.ds.concurrent.catrees;
+
+import me.winsh.ds.mutable.ImmutableTreapMapHolder;
+
+/**
+ * Like DefaultContentionPolicy but the contention that has been recorded
+ * decays over time. The statistics are halved for every half-life that has
+ * passed since the base node last saw contention, so a few contended
+ * acquisitions that are far apart in time do not cause a split.
+ * 
+ * The clock is only read when contention is recorded and when the split
+ * limit is reached, so uncontended operations stay as cheap as with the
+ * default policy.
+ */
+public class TimeDecayedContentionPolicy extends DefaultContentionPolicy {
+
+	public static final long DEFAULT_HALF_LIFE_NANOS = 10000000L; // 10 ms
+
+	private final long halfLifeNanos;
+
+	public TimeDecayedContentionPolicy() {
+		this(DEFAULT_HALF_LIFE_NANOS);
+	}
+
+	public TimeDecayedContentionPolicy(long halfLifeNanos) {
+		super();
+		if (halfLifeNanos <= 0) {
+			throw new RuntimeException("The half-life must be positive");
+		}
+		this.halfLifeNanos = halfLifeNanos;
+	}
+
+	public TimeDecayedContentionPolicy(long halfLifeNanos, int highContentionLimit, int lowContentionLimit,
+			int contendedContrib, int uncontendedContrib, int multiBaseNodeContrib) {
+		super(highContentionLimit, lowContentionLimit, contendedContrib, uncontendedContrib, multiBaseNodeContrib);
+		if (halfLifeNanos <= 0) {
+			throw new RuntimeException("The half-life must be positive");
+		}
+		this.halfLifeNanos = halfLifeNanos;
+	}
+
+	private void decay(ImmutableTreapMapHolder<?, ?> baseNode, long now) {
+		int statistics = baseNode.getStatistics();
+		long halfLives = (now - baseNode.getStatisticsTimestamp()) / halfLifeNanos;
+		if (statistics > 0 && halfLives > 0) {
+			baseNode.setStatistics(halfLives >= 31 ? 0 : statistics >> halfLives);
+		}
+		baseNode.setStatisticsTimestamp(now);
+	}
+
+	@Override
+	public void recordContended(ImmutableTreapMapHolder<?, ?> baseNode) {
+		decay(baseNode, System.nanoTime());
+		super.recordContended(baseNode);
+	}
+
+	@Override
+	public boolean shouldSplit(ImmutableTreapMapHolder<?, ?> baseNode, int numberOfBaseNodes) {
+		if (!super.shouldSplit(baseNode, numberOfBaseNodes)) {
+			return false;
+		}
+		decay(baseNode, System.nanoTime());
+		return super.shouldSplit(baseNode, numberOfBaseNodes);
+	}
+
+	public long getHalfLifeNanos() {
+		return halfLifeNanos;
+	}
+
+}
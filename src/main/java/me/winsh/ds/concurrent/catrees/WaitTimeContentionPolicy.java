@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2018 Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ *  This file is part of catrees.
+ *
+ *  catrees is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  catrees is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with catrees.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.winsh.ds.concurrent.catrees;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import me.winsh.ds.mutable.ImmutableTreapMapHolder;
+
+/**
+ * Weights contended lock acquisitions by how long the thread waited for
+ * the lock instead of counting every failed tryLock the same. A wait of
+ * referenceWaitNanos contributes as much as a contended acquisition does
+ * with DefaultContentionPolicy. Short spins therefore hardly move the
+ * statistics while a single long convoy is enough to reach the split
+ * limit.
+ * 
+ * Only one in sampleRate contended acquisitions is timed and its
+ * contribution is scaled up by sampleRate, so System.nanoTime is kept off
+ * most calls. Contention that is not caused by waiting for the lock (for
+ * example failed CAS attempts in the LOCK_FREE update mode) is recorded
+ * as in DefaultContentionPolicy.
+ */
+public class WaitTimeContentionPolicy extends DefaultContentionPolicy {
+
+	public static final long DEFAULT_REFERENCE_WAIT_NANOS = 10000; // 10 us
+	public static final int DEFAULT_SAMPLE_RATE = 8;
+
+	private final long referenceWaitNanos;
+	private final int sampleRate;
+
+	public WaitTimeContentionPolicy() {
+		this(DEFAULT_REFERENCE_WAIT_NANOS, DEFAULT_SAMPLE_RATE);
+	}
+
+	public WaitTimeContentionPolicy(long referenceWaitNanos, int sampleRate) {
+		this(referenceWaitNanos, sampleRate, DEFAULT_HIGH_CONTENTION_LIMIT, DEFAULT_LOW_CONTENTION_LIMIT,
+				DEFAULT_CONTENDED_CONTRIB, DEFAULT_UNCONTENDED_CONTRIB, DEFAULT_MULTI_BASE_NODE_CONTRIB);
+	}
+
+	public WaitTimeContentionPolicy(long referenceWaitNanos, int sampleRate, int highContentionLimit,
+			int lowContentionLimit, int contendedContrib, int uncontendedContrib, int multiBaseNodeContrib) {
+		super(highContentionLimit, lowContentionLimit, contendedContrib, uncontendedContrib, multiBaseNodeContrib);
+		if (referenceWaitNanos <= 0 || sampleRate <= 0) {
+			throw new RuntimeException("The reference wait time and the sample rate must be positive");
+		}
+		this.referenceWaitNanos = referenceWaitNanos;
+		this.sampleRate = sampleRate;
+	}
+
+	@Override
+	public boolean shouldMeasureWaitTime(ImmutableTreapMapHolder<?, ?> baseNode) {
+		return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+	}
+
+	@Override
+	public void recordContended(ImmutableTreapMapHolder<?, ?> baseNode, long waitNanos) {
+		if (waitNanos == UNMEASURED_WAIT_TIME) {
+			return; // Accounted for by the scaling of the sampled waits
+		}
+		long contrib = (waitNanos * contendedContrib / referenceWaitNanos) * sampleRate;
+		// Never more than what is needed to reach the split limit from zero
+		contrib = Math.min(contrib, (long) highContentionLimit + 1);
+		baseNode.setStatistics((int) Math.min(Integer.MAX_VALUE, baseNode.getStatistics() + contrib));
+	}
+
+	public long getReferenceWaitNanos() {
+		return referenceWaitNanos;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+}
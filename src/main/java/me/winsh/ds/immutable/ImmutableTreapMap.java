@@ -20,10 +20,17 @@ package me.winsh.ds.immutable;
 
 import java.io.File;
 import java.io.PrintStream;
+import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
 import java.util.TreeMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 
 import me.winsh.ds.mutable.Stack;
@@ -50,11 +57,79 @@ public class ImmutableTreapMap {
 	static public interface ImmutableTreapValue<K, V> {
 	}
 
+	/**
+	 * Combines values into an aggregate, for example a sum or a maximum.
+	 * combine must be associative and identity() must be its identity
+	 * element. The aggregators of a treap are given when it is created and
+	 * every node stores the aggregates of its subtree (see aggregate).
+	 */
+	static public interface Aggregator<V, A> {
+		public A identity();
+
+		public A lift(V value);
+
+		public A combine(A left, A right);
+	}
+
+	/*
+	 * The aggregates of a node are computed in its constructor from the
+	 * aggregates of its children (or from its values in an external node),
+	 * and nodes created by copying take the aggregators of the nodes they
+	 * are copied from. Nodes are immutable, so an update only computes the
+	 * aggregates of the nodes on the copied paths. A treap without
+	 * aggregators has null as aggregators and aggregates.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object[] computeAggregates(Aggregator<?, ?>[] aggregators, Object[] values) {
+		if (aggregators == null) {
+			return null;
+		}
+		Object[] aggregates = new Object[aggregators.length];
+		for (int a = 0; a < aggregators.length; a++) {
+			Aggregator<Object, Object> aggregator = (Aggregator<Object, Object>) aggregators[a];
+			Object aggregate = aggregator.identity();
+			for (int i = 0; i < values.length; i++) {
+				aggregate = aggregator.combine(aggregate, aggregator.lift(values[i]));
+			}
+			aggregates[a] = aggregate;
+		}
+		return aggregates;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object[] combineAggregates(Aggregator<?, ?>[] aggregators, Object[] left, Object[] right) {
+		if (aggregators == null) {
+			return null;
+		}
+		Object[] aggregates = new Object[aggregators.length];
+		for (int a = 0; a < aggregators.length; a++) {
+			aggregates[a] = ((Aggregator<Object, Object>) aggregators[a]).combine(left[a], right[a]);
+		}
+		return aggregates;
+	}
+
+	public static <K, V> Aggregator<?, ?>[] aggregatorsOf(ImmutableTreapValue<K, V> root) {
+		if (root instanceof InternalNode) {
+			return ((InternalNode<K, V>) root).aggregators;
+		}
+		return ((ExternalNode<K, V>) root).aggregators;
+	}
+
+	private static <K, V> Object[] aggregatesOf(Node<K, V> node) {
+		if (node instanceof InternalNode) {
+			return ((InternalNode<K, V>) node).aggregates;
+		}
+		return ((ExternalNode<K, V>) node).aggregates;
+	}
+
 	static public interface Node<K, V> extends ImmutableTreapValue<K, V> {
 		public Node<K, V> createClone();
 
 		public long getWeight();
 
+		// The number of items in the subtree
+		public int size();
+
 		public K minKey();
 
 		public String nodeKeysToString();
@@ -65,6 +140,9 @@ public class ImmutableTreapMap {
 		private Node<K, V> left = null;
 		private Node<K, V> right = null;
 		private long weight;
+		private int size;
+		private Aggregator<?, ?>[] aggregators;
+		private Object[] aggregates;
 
 		public K getKey() {
 			return key;
@@ -82,12 +160,24 @@ public class ImmutableTreapMap {
 			return weight;
 		}
 
+		public int size() {
+			return size;
+		}
+
+		// Must be called when a child of a newly created node is changed
+		private void updateSizeAndAggregates() {
+			size = left.size() + right.size();
+			aggregators = aggregatorsOf(left);
+			aggregates = combineAggregates(aggregators, aggregatesOf(left), aggregatesOf(right));
+		}
+
 		public InternalNode(K key, Node<K, V> left, Node<K, V> right) {
 			super();
 			this.key = key;
 			this.left = left;
 			this.right = right;
 			this.weight = ThreadLocalRandom.current().nextLong(1152921504606846976L - 1) + 1;
+			updateSizeAndAggregates();
 		}
 
 		public InternalNode(K key, Node<K, V> left, Node<K, V> right, long weight) {
@@ -96,6 +186,7 @@ public class ImmutableTreapMap {
 			this.left = left;
 			this.right = right;
 			this.weight = weight;
+			updateSizeAndAggregates();
 		}
 
 		public Node<K, V> createClone() {
@@ -124,9 +215,21 @@ public class ImmutableTreapMap {
 	}
 
 	static public class ExternalNode<K, V> implements Node<K, V> {
-		private K maxKey = null;
-		private Object[] keys;
-		private Object[] values;
+		private final K maxKey;
+		private final Aggregator<?, ?>[] aggregators;
+		private final Object[] aggregates;
+		private final Object[] keys;
+		private final Object[] values;
+
+		// The arrays must not be modified after the call
+		@SuppressWarnings("unchecked")
+		ExternalNode(Object[] keys, Object[] values, Aggregator<?, ?>[] aggregators) {
+			this.keys = keys;
+			this.values = values;
+			this.maxKey = keys.length == 0 ? null : (K) keys[keys.length - 1];
+			this.aggregators = aggregators;
+			this.aggregates = computeAggregates(aggregators, values);
+		}
 
 		@Override
 		public String toString() {
@@ -188,17 +291,14 @@ public class ImmutableTreapMap {
 			}
 		}
 
-		@SuppressWarnings("unchecked")
 		public Node<K, V> createClone() {
-			ExternalNode<K, V> clone = new ExternalNode<>();
-			clone.keys = new Object[this.keys.length];
-			clone.values = new Object[this.keys.length];
+			Object[] newKeys = new Object[this.keys.length];
+			Object[] newValues = new Object[this.keys.length];
 			for (int i = 0; i < keys.length; i++) {
-				clone.keys[i] = keys[i];
-				clone.values[i] = values[i];
+				newKeys[i] = keys[i];
+				newValues[i] = values[i];
 			}
-			clone.maxKey = (K) clone.keys[this.keys.length - 1];
-			return clone;
+			return new ExternalNode<K, V>(newKeys, newValues, aggregators);
 		}
 
 		public boolean isFull() {
@@ -216,96 +316,86 @@ public class ImmutableTreapMap {
 			return maxKey;
 		}
 
-		@SuppressWarnings("unchecked")
 		public ExternalNode<K, V> splitLeft() {
-			ExternalNode<K, V> newNode = new ExternalNode<K, V>();
 			int splitUntilIndex = keys.length / 2;
-			newNode.keys = new Object[splitUntilIndex];
-			newNode.values = new Object[splitUntilIndex];
+			Object[] newKeys = new Object[splitUntilIndex];
+			Object[] newValues = new Object[splitUntilIndex];
 			for (int i = 0; i < splitUntilIndex; i++) {
-				newNode.keys[i] = keys[i];
-				newNode.values[i] = values[i];
+				newKeys[i] = keys[i];
+				newValues[i] = values[i];
 			}
-			newNode.maxKey = (K) newNode.keys[newNode.keys.length - 1];
-			return newNode;
+			return new ExternalNode<K, V>(newKeys, newValues, aggregators);
 		}
 
-		@SuppressWarnings("unchecked")
 		public ExternalNode<K, V> splitRight() {
-			ExternalNode<K, V> newNode = new ExternalNode<K, V>();
 			int splitFromIndex = keys.length / 2;
-			newNode.keys = new Object[keys.length - splitFromIndex];
-			newNode.values = new Object[keys.length - splitFromIndex];
+			Object[] newKeys = new Object[keys.length - splitFromIndex];
+			Object[] newValues = new Object[keys.length - splitFromIndex];
 			for (int i = 0; i < (keys.length - splitFromIndex); i++) {
-				newNode.keys[i] = keys[splitFromIndex + i];
-				newNode.values[i] = values[splitFromIndex + i];
+				newKeys[i] = keys[splitFromIndex + i];
+				newValues[i] = values[splitFromIndex + i];
 			}
-			newNode.maxKey = (K) newNode.keys[newNode.keys.length - 1];
-			return newNode;
+			return new ExternalNode<K, V>(newKeys, newValues, aggregators);
 		}
 
 		@SuppressWarnings("unchecked")
 		public ExternalNode<K, V> splitLeftAndInsert(K key, V value, Comparator<? super K> comparator) {
-			ExternalNode<K, V> newNode = new ExternalNode<K, V>();
 			int splitUntilIndex = keys.length / 2;
-			newNode.keys = new Object[splitUntilIndex + 1];
-			newNode.values = new Object[splitUntilIndex + 1];
+			Object[] newKeys = new Object[splitUntilIndex + 1];
+			Object[] newValues = new Object[splitUntilIndex + 1];
 			boolean inserted = false;
 			for (int i = 0; i < (splitUntilIndex + 1); i++) {
 				if (!inserted && i == splitUntilIndex) {
-					newNode.keys[i] = key;
-					newNode.values[i] = value;
+					newKeys[i] = key;
+					newValues[i] = value;
 					break;
 				} else if (inserted && i == splitUntilIndex) {
 					break;
 				} else if (!inserted && compare(key, (K) keys[i], comparator) < 0) {
-					newNode.keys[i] = key;
-					newNode.values[i] = value;
+					newKeys[i] = key;
+					newValues[i] = value;
 					inserted = true;
-					newNode.keys[i + 1] = keys[i];
-					newNode.values[i + 1] = values[i];
+					newKeys[i + 1] = keys[i];
+					newValues[i + 1] = values[i];
 				} else if (!inserted) {
-					newNode.keys[i] = keys[i];
-					newNode.values[i] = values[i];
+					newKeys[i] = keys[i];
+					newValues[i] = values[i];
 				} else {
-					newNode.keys[i + 1] = keys[i];
-					newNode.values[i + 1] = values[i];
+					newKeys[i + 1] = keys[i];
+					newValues[i + 1] = values[i];
 				}
 			}
-			newNode.maxKey = (K) newNode.keys[newNode.keys.length - 1];
-			return newNode;
+			return new ExternalNode<K, V>(newKeys, newValues, aggregators);
 		}
 
 		@SuppressWarnings("unchecked")
 		public ExternalNode<K, V> splitRightAndInsert(K key, V value, Comparator<? super K> comparator) {
-			ExternalNode<K, V> newNode = new ExternalNode<K, V>();
 			int splitFromIndex = keys.length / 2;
-			newNode.keys = new Object[keys.length - splitFromIndex + 1];
-			newNode.values = new Object[keys.length - splitFromIndex + 1];
+			Object[] newKeys = new Object[keys.length - splitFromIndex + 1];
+			Object[] newValues = new Object[keys.length - splitFromIndex + 1];
 			boolean inserted = false;
 			for (int i = 0; i < (keys.length - splitFromIndex + 1); i++) {
 				if (!inserted && i == (keys.length - splitFromIndex)) {
-					newNode.keys[i] = key;
-					newNode.values[i] = value;
+					newKeys[i] = key;
+					newValues[i] = value;
 					break;
 				} else if (inserted && i == (keys.length - splitFromIndex)) {
 					break;
 				} else if (!inserted && compare(key, (K) keys[splitFromIndex + i], comparator) < 0) {
-					newNode.keys[i] = key;
-					newNode.values[i] = value;
+					newKeys[i] = key;
+					newValues[i] = value;
 					inserted = true;
-					newNode.keys[i + 1] = keys[splitFromIndex + i];
-					newNode.values[i + 1] = values[splitFromIndex + i];
+					newKeys[i + 1] = keys[splitFromIndex + i];
+					newValues[i + 1] = values[splitFromIndex + i];
 				} else if (!inserted) {
-					newNode.keys[i] = keys[splitFromIndex + i];
-					newNode.values[i] = values[splitFromIndex + i];
+					newKeys[i] = keys[splitFromIndex + i];
+					newValues[i] = values[splitFromIndex + i];
 				} else {
-					newNode.keys[i + 1] = keys[splitFromIndex + i];
-					newNode.values[i + 1] = values[splitFromIndex + i];
+					newKeys[i + 1] = keys[splitFromIndex + i];
+					newValues[i + 1] = values[splitFromIndex + i];
 				}
 			}
-			newNode.maxKey = (K) newNode.keys[newNode.keys.length - 1];
-			return newNode;
+			return new ExternalNode<K, V>(newKeys, newValues, aggregators);
 		}
 
 		// Based on open JDK 8 code Arrays.binarySearch
@@ -341,64 +431,62 @@ public class ImmutableTreapMap {
 			}
 		}
 
-		@SuppressWarnings("unchecked")
 		public ExternalNode<K, V> replaceValueAtPos(int pos, V value) {
-			ExternalNode<K, V> newNode = new ExternalNode<K, V>();
-			newNode.keys = new Object[keys.length];
-			newNode.values = new Object[keys.length];
+			Object[] newKeys = new Object[keys.length];
+			Object[] newValues = new Object[keys.length];
 			for (int i = 0; i < keys.length; i++) {
-				newNode.keys[i] = keys[i];
-				newNode.values[i] = values[i];
+				newKeys[i] = keys[i];
+				newValues[i] = values[i];
 			}
-			newNode.values[pos] = value;
-			newNode.maxKey = (K) newNode.keys[newNode.keys.length - 1];
-			return newNode;
+			newValues[pos] = value;
+			return new ExternalNode<K, V>(newKeys, newValues, aggregators);
 		}
 
-		@SuppressWarnings("unchecked")
 		public ExternalNode<K, V> removeItemAtPos(int pos) {
-			ExternalNode<K, V> newNode = new ExternalNode<K, V>();
-			newNode.keys = new Object[keys.length - 1];
-			newNode.values = new Object[keys.length - 1];
+			Object[] newKeys = new Object[keys.length - 1];
+			Object[] newValues = new Object[keys.length - 1];
 			int newNodeI = 0;
 			for (int i = 0; i < keys.length; i++) {
 				if (i == pos) {
 					continue;
 				}
-				newNode.keys[newNodeI] = keys[i];
-				newNode.values[newNodeI] = values[i];
+				newKeys[newNodeI] = keys[i];
+				newValues[newNodeI] = values[i];
 				newNodeI = newNodeI + 1;
 			}
-			if (pos == (keys.length - 1)) {
-				newNode.maxKey = (K) newNode.keys[newNode.keys.length - 1];
-			}
-			newNode.maxKey = (K) newNode.keys[newNode.keys.length - 1];
-			return newNode;
+			return new ExternalNode<K, V>(newKeys, newValues, aggregators);
 		}
 
-		@SuppressWarnings("unchecked")
 		public ExternalNode<K, V> addAtPos(int insertPos, K key, V val) {
-			ExternalNode<K, V> newNode = new ExternalNode<K, V>();
-			newNode.keys = new Object[keys.length + 1];
-			newNode.values = new Object[keys.length + 1];
+			Object[] newKeys = new Object[keys.length + 1];
+			Object[] newValues = new Object[keys.length + 1];
 			int newNodeI = 0;
 			for (int i = 0; i < (keys.length + 1); i++) {
 				if (i == insertPos) {
-					newNode.keys[newNodeI] = key;
-					newNode.values[newNodeI] = val;
+					newKeys[newNodeI] = key;
+					newValues[newNodeI] = val;
 					newNodeI = newNodeI + 1;
 				}
 				if (i != keys.length) {
-					newNode.keys[newNodeI] = keys[i];
-					newNode.values[newNodeI] = values[i];
+					newKeys[newNodeI] = keys[i];
+					newValues[newNodeI] = values[i];
 				}
 				newNodeI = newNodeI + 1;
 			}
-			if (insertPos == (keys.length)) {
-				newNode.maxKey = (K) newNode.keys[newNode.keys.length - 1];
+			return new ExternalNode<K, V>(newKeys, newValues, aggregators);
+		}
+
+		public ExternalNode<K, V> subNode(int fromIndex, int toIndex) {
+			if (fromIndex == 0 && toIndex == keys.length) {
+				return this;
+			}
+			Object[] newKeys = new Object[toIndex - fromIndex];
+			Object[] newValues = new Object[toIndex - fromIndex];
+			for (int i = fromIndex; i < toIndex; i++) {
+				newKeys[i - fromIndex] = keys[i];
+				newValues[i - fromIndex] = values[i];
 			}
-			newNode.maxKey = (K) newNode.keys[newNode.keys.length - 1];
-			return newNode;
+			return new ExternalNode<K, V>(newKeys, newValues, aggregators);
 		}
 
 		public int size() {
@@ -431,8 +519,6 @@ public class ImmutableTreapMap {
 	}
 
 	private final static class ThreadLocalBuffers {
-		public int sizeCounter;
-
 		@SuppressWarnings("rawtypes")
 		public Stack<Node> getStack() {
 			stack.resetStack();
@@ -580,6 +666,69 @@ public class ImmutableTreapMap {
 
 	}
 
+	/*
+	 * Calls consumer with each of keys[from, to), which must be sorted, and
+	 * its value or null if the key is not present. The keys are partitioned
+	 * at the internal nodes on the way down, so each node is visited once
+	 * for the whole batch, and the keys that end up in the same external
+	 * node are searched for from the position of the previous key.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> void getAllSorted(ImmutableTreapValue<K, V> root, Object[] keys, int from, int to,
+			Comparator<? super K> comparator, BiConsumer<? super K, ? super V> consumer) {
+		if (from == to) {
+			return;
+		}
+		Node<K, V> node = (Node<K, V>) root;
+		while (node instanceof InternalNode) {
+			InternalNode<K, V> nodeI = (InternalNode<K, V>) node;
+			// Find the first key that belongs to the right subtree
+			int low = from;
+			int high = to;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (compare((K) keys[mid], nodeI.getKey(), comparator) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			if (low == to) {
+				node = nodeI.getLeft();
+			} else if (low == from) {
+				node = nodeI.getRight();
+			} else {
+				getAllSorted(nodeI.getLeft(), keys, from, low, comparator, consumer);
+				getAllSorted(nodeI.getRight(), keys, low, to, comparator, consumer);
+				return;
+			}
+		}
+		ExternalNode<K, V> nodeE = (ExternalNode<K, V>) node;
+		Object[] nodeKeys = nodeE.keys;
+		int position = 0;
+		for (int i = from; i < to; i++) {
+			K key = (K) keys[i];
+			int low = position;
+			int high = nodeKeys.length - 1;
+			V value = null;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int cmp = compare(key, (K) nodeKeys[mid], comparator);
+				if (cmp > 0) {
+					low = mid + 1;
+				} else if (cmp < 0) {
+					high = mid - 1;
+				} else {
+					value = (V) nodeE.values[mid];
+					low = mid;
+					break;
+				}
+			}
+			position = low;
+			consumer.accept(key, value);
+		}
+	}
+
 	// public static int i;
 
 	public static <K, V> ImmutableTreapValue<K, V> put(ImmutableTreapValue<K, V> root, K key, V value,
@@ -703,7 +852,7 @@ public class ImmutableTreapMap {
 		} else {
 			threadLocalBuffers.get().setPrevValue(externalNode.getValues()[index]);
 			if (internalParent == null) {
-				return createEmpty();
+				return createEmpty(externalNode.aggregators);
 			}
 			if (leftChild) {
 				topCopied = internalParent.getRight().createClone();
@@ -729,11 +878,255 @@ public class ImmutableTreapMap {
 		return topCopied;
 	}
 
-	public static <K, V> ImmutableTreapValue<K, V> createEmpty() {
-		ExternalNode<K, V> node = new ExternalNode<>();
-		node.keys = new Object[0];
-		node.values = new Object[0];
-		return node;
+	/*
+	 * Returns a treap without keys[from, to), which must be sorted and
+	 * without duplicates. The keys are partitioned at the internal nodes
+	 * like in getAllSorted, so only the paths to the external nodes that
+	 * contain removed keys are copied. A subtree that becomes empty is
+	 * replaced by its sibling.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> ImmutableTreapValue<K, V> removeAllSorted(ImmutableTreapValue<K, V> root, Object[] keys,
+			int from, int to, Comparator<? super K> comparator) {
+		if (from == to) {
+			return root;
+		}
+		if (root instanceof ExternalNode) {
+			ExternalNode<K, V> nodeE = (ExternalNode<K, V>) root;
+			Object[] remainingKeys = new Object[nodeE.keys.length];
+			Object[] remainingValues = new Object[nodeE.keys.length];
+			int remaining = 0;
+			int i = from;
+			for (int j = 0; j < nodeE.keys.length; j++) {
+				while (i < to && compare((K) keys[i], (K) nodeE.keys[j], comparator) < 0) {
+					i++;
+				}
+				if (i < to && compare((K) keys[i], (K) nodeE.keys[j], comparator) == 0) {
+					continue;
+				}
+				remainingKeys[remaining] = nodeE.keys[j];
+				remainingValues[remaining] = nodeE.values[j];
+				remaining++;
+			}
+			if (remaining == nodeE.keys.length) {
+				return root;
+			}
+			return new ExternalNode<K, V>(Arrays.copyOf(remainingKeys, remaining),
+					Arrays.copyOf(remainingValues, remaining), nodeE.aggregators);
+		}
+		InternalNode<K, V> nodeI = (InternalNode<K, V>) root;
+		// Find the first key that belongs to the right subtree
+		int low = from;
+		int high = to;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compare((K) keys[mid], nodeI.getKey(), comparator) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		Node<K, V> left = (Node<K, V>) removeAllSorted(nodeI.getLeft(), keys, from, low, comparator);
+		Node<K, V> right = (Node<K, V>) removeAllSorted(nodeI.getRight(), keys, low, to, comparator);
+		if (left == nodeI.getLeft() && right == nodeI.getRight()) {
+			return root;
+		} else if (isEmpty(left)) {
+			return right;
+		} else if (isEmpty(right)) {
+			return left;
+		}
+		return new InternalNode<K, V>(nodeI.getKey(), left, right, nodeI.getWeight());
+	}
+
+	// aggregators may be null if the treap should not have any aggregates
+	public static <K, V> ImmutableTreapValue<K, V> createEmpty(Aggregator<?, ?>[] aggregators) {
+		return new ExternalNode<K, V>(new Object[0], new Object[0], aggregators);
+	}
+
+	/*
+	 * Builds a treap from keys[from, to), which must be sorted and without
+	 * duplicates, in O(to - from) time. The external nodes are filled with
+	 * DEGREE keys each. The internal nodes get random weights like the ones
+	 * created by put, and the treap over them is built as a Cartesian tree
+	 * with a stack, so the result has the same shape distribution as a
+	 * treap built with put.
+	 */
+	public static <K, V> ImmutableTreapValue<K, V> createFromSorted(Object[] keys, Object[] values, int from,
+			int to, Aggregator<?, ?>[] aggregators) {
+		if (from == to) {
+			return createEmpty(aggregators);
+		}
+		int numberOfLeaves = (to - from + DEGREE - 1) / DEGREE;
+		ExternalNode<K, V>[] leaves = newExternalNodeArray(numberOfLeaves);
+		for (int i = 0; i < numberOfLeaves; i++) {
+			int leafFrom = from + i * DEGREE;
+			int leafTo = Math.min(leafFrom + DEGREE, to);
+			leaves[i] = new ExternalNode<K, V>(Arrays.copyOfRange(keys, leafFrom, leafTo),
+					Arrays.copyOfRange(values, leafFrom, leafTo), aggregators);
+		}
+		// Separator i is the internal node between leaf i and leaf i + 1
+		int numberOfSeparators = numberOfLeaves - 1;
+		if (numberOfSeparators == 0) {
+			return leaves[0];
+		}
+		long[] weights = new long[numberOfSeparators];
+		int[] leftChild = new int[numberOfSeparators];
+		int[] rightChild = new int[numberOfSeparators];
+		int[] stack = new int[numberOfSeparators];
+		int stackSize = 0;
+		for (int i = 0; i < numberOfSeparators; i++) {
+			weights[i] = ThreadLocalRandom.current().nextLong(1152921504606846976L - 1) + 1;
+			rightChild[i] = -1;
+			int lastPopped = -1;
+			while (stackSize > 0 && weights[stack[stackSize - 1]] < weights[i]) {
+				lastPopped = stack[--stackSize];
+			}
+			leftChild[i] = lastPopped;
+			if (stackSize > 0) {
+				rightChild[stack[stackSize - 1]] = i;
+			}
+			stack[stackSize++] = i;
+		}
+		return createFromSortedHelper(stack[0], leaves, weights, leftChild, rightChild);
+	}
+
+	/*
+	 * Returns a treap that also contains keys[from, to) (sorted and without
+	 * duplicates) with the given values. A treap is built from the batch
+	 * with createFromSorted and then united with the given treap. The union
+	 * splits the treap with the lower root weight at the root key of the
+	 * other, so only the nodes where the two treaps interleave are copied.
+	 * The expected cost is O(m log(n / m + 1)) for a batch of m keys
+	 * instead of O(m log n) for m separate puts.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> ImmutableTreapValue<K, V> putAllSorted(ImmutableTreapValue<K, V> root, Object[] keys,
+			Object[] values, int from, int to, Comparator<? super K> comparator) {
+		if (from == to) {
+			return root;
+		}
+		Node<K, V> batch = (Node<K, V>) createFromSorted(keys, values, from, to, aggregatorsOf(root));
+		return union((Node<K, V>) root, batch, comparator);
+	}
+
+	/*
+	 * Keys that are in both treaps get the value from newer. An external
+	 * node that meets a subtree is put into it key by key, which creates
+	 * internal nodes with new random weights, so the parents above such
+	 * subtrees are created with createParent to keep the heap order.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K, V> Node<K, V> union(Node<K, V> older, Node<K, V> newer, Comparator<? super K> comparator) {
+		if (older instanceof ExternalNode || newer instanceof ExternalNode) {
+			if (older instanceof ExternalNode && newer instanceof ExternalNode
+					&& ((ExternalNode<K, V>) older).size() + ((ExternalNode<K, V>) newer).size() <= DEGREE) {
+				return mergeExternalNodes((ExternalNode<K, V>) older, (ExternalNode<K, V>) newer, comparator);
+			} else if (older instanceof ExternalNode) {
+				return putAllFromExternalNode(newer, (ExternalNode<K, V>) older, true, comparator);
+			} else {
+				return putAllFromExternalNode(older, (ExternalNode<K, V>) newer, false, comparator);
+			}
+		}
+		InternalNode<K, V> olderI = (InternalNode<K, V>) older;
+		InternalNode<K, V> newerI = (InternalNode<K, V>) newer;
+		Object[] rightWriteBack = new Object[1];
+		InternalNode<K, V> top;
+		Node<K, V> left;
+		Node<K, V> right;
+		if (olderI.getWeight() >= newerI.getWeight()) {
+			top = olderI;
+			Node<K, V> newerLeft = splitAtKeyHelper(newer, olderI.getKey(), false, comparator, rightWriteBack);
+			left = union(olderI.getLeft(), newerLeft, comparator);
+			right = union(olderI.getRight(), (Node<K, V>) rightWriteBack[0], comparator);
+		} else {
+			top = newerI;
+			Node<K, V> olderLeft = splitAtKeyHelper(older, newerI.getKey(), false, comparator, rightWriteBack);
+			left = union(olderLeft, newerI.getLeft(), comparator);
+			right = union((Node<K, V>) rightWriteBack[0], newerI.getRight(), comparator);
+		}
+		return createParent(top, left, right);
+	}
+
+	/*
+	 * Creates a copy of top with the given children. If a child is heavier
+	 * than top the children are joined instead, which rotates the heavier
+	 * nodes up.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K, V> Node<K, V> createParent(InternalNode<K, V> top, Node<K, V> left, Node<K, V> right) {
+		if (isEmpty(left)) {
+			return right;
+		} else if (isEmpty(right)) {
+			return left;
+		} else if (left.getWeight() > top.getWeight() || right.getWeight() > top.getWeight()) {
+			return (Node<K, V>) join(left, right);
+		}
+		return new InternalNode<K, V>(top.getKey(), left, right, top.getWeight());
+	}
+
+	// The merged node must fit in one external node
+	@SuppressWarnings("unchecked")
+	private static <K, V> Node<K, V> mergeExternalNodes(ExternalNode<K, V> older, ExternalNode<K, V> newer,
+			Comparator<? super K> comparator) {
+		int olderSize = older.keys.length;
+		int newerSize = newer.keys.length;
+		Object[] mergedKeys = new Object[olderSize + newerSize];
+		Object[] mergedValues = new Object[olderSize + newerSize];
+		int merged = 0;
+		int i = 0;
+		int j = 0;
+		while (i < olderSize || j < newerSize) {
+			int cmp;
+			if (i == olderSize) {
+				cmp = 1;
+			} else if (j == newerSize) {
+				cmp = -1;
+			} else {
+				cmp = compare((K) older.keys[i], (K) newer.keys[j], comparator);
+			}
+			if (cmp < 0) {
+				mergedKeys[merged] = older.keys[i];
+				mergedValues[merged] = older.values[i];
+				i++;
+			} else {
+				if (cmp == 0) {
+					i++; // Replaced by the new value
+				}
+				mergedKeys[merged] = newer.keys[j];
+				mergedValues[merged] = newer.values[j];
+				j++;
+			}
+			merged++;
+		}
+		return (Node<K, V>) createFromSorted(mergedKeys, mergedValues, 0, merged, older.aggregators);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> Node<K, V> putAllFromExternalNode(Node<K, V> target, ExternalNode<K, V> source,
+			boolean onlyIfAbsent, Comparator<? super K> comparator) {
+		ImmutableTreapValue<K, V> result = target;
+		for (int i = 0; i < source.keys.length; i++) {
+			if (onlyIfAbsent) {
+				result = putIfAbsent(result, (K) source.keys[i], (V) source.values[i], comparator);
+			} else {
+				result = put(result, (K) source.keys[i], (V) source.values[i], comparator);
+			}
+		}
+		return (Node<K, V>) result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> ExternalNode<K, V>[] newExternalNodeArray(int size) {
+		return (ExternalNode<K, V>[]) new ExternalNode<?, ?>[size];
+	}
+
+	private static <K, V> Node<K, V> createFromSortedHelper(int separator, ExternalNode<K, V>[] leaves,
+			long[] weights, int[] leftChild, int[] rightChild) {
+		Node<K, V> left = leftChild[separator] == -1 ? leaves[separator]
+				: createFromSortedHelper(leftChild[separator], leaves, weights, leftChild, rightChild);
+		Node<K, V> right = rightChild[separator] == -1 ? leaves[separator + 1]
+				: createFromSortedHelper(rightChild[separator], leaves, weights, leftChild, rightChild);
+		return new InternalNode<K, V>(leaves[separator + 1].minKey(), left, right, weights[separator]);
 	}
 
 	public static <K, V> ImmutableTreapValue<K, V> splitLeft(ImmutableTreapValue<K, V> root) {
@@ -752,6 +1145,131 @@ public class ImmutableTreapMap {
 		}
 	}
 
+	/*
+	 * Splits the treap at splitKey. Keys less than splitKey (or less than or
+	 * equal to splitKey if splitKeyGoesLeft is true) are in the returned
+	 * treap and the other keys are in the treap written to
+	 * rightWriteBack[0]. Only the nodes on the search path for splitKey are
+	 * copied, the rest are shared with the input treap.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> ImmutableTreapValue<K, V> splitAtKey(ImmutableTreapValue<K, V> root, K splitKey,
+			boolean splitKeyGoesLeft, Comparator<? super K> comparator, Object[] rightWriteBack) {
+		return splitAtKeyHelper((Node<K, V>) root, splitKey, splitKeyGoesLeft, comparator, rightWriteBack);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> Node<K, V> splitAtKeyHelper(Node<K, V> node, K splitKey, boolean splitKeyGoesLeft,
+			Comparator<? super K> comparator, Object[] rightWriteBack) {
+		if (node instanceof ExternalNode) {
+			ExternalNode<K, V> nodeE = (ExternalNode<K, V>) node;
+			int index = nodeE.indexOfKeyInNode(splitKey, comparator);
+			int splitPos;
+			if (index >= 0) {
+				splitPos = splitKeyGoesLeft ? index + 1 : index;
+			} else {
+				splitPos = (-1) * (index + 1);
+			}
+			rightWriteBack[0] = nodeE.subNode(splitPos, nodeE.size());
+			return nodeE.subNode(0, splitPos);
+		}
+		InternalNode<K, V> nodeI = (InternalNode<K, V>) node;
+		if (compare(splitKey, nodeI.getKey(), comparator) < 0) {
+			Node<K, V> left = splitAtKeyHelper(nodeI.getLeft(), splitKey, splitKeyGoesLeft, comparator,
+					rightWriteBack);
+			Node<K, V> rightOfLeft = (Node<K, V>) rightWriteBack[0];
+			if (isEmpty(rightOfLeft)) {
+				rightWriteBack[0] = nodeI.getRight();
+			} else {
+				rightWriteBack[0] = new InternalNode<K, V>(nodeI.getKey(), rightOfLeft, nodeI.getRight(),
+						nodeI.getWeight());
+			}
+			return left;
+		} else {
+			Node<K, V> leftOfRight = splitAtKeyHelper(nodeI.getRight(), splitKey, splitKeyGoesLeft, comparator,
+					rightWriteBack);
+			if (isEmpty(leftOfRight)) {
+				return nodeI.getLeft();
+			}
+			return new InternalNode<K, V>(nodeI.getKey(), nodeI.getLeft(), leftOfRight, nodeI.getWeight());
+		}
+	}
+
+	/*
+	 * Returns a treap without the keys in [lo, hi]. null as lo or hi means no
+	 * bound. The keys are cut out with two splits and one join, so only
+	 * O(log n) nodes are copied however many keys are removed, and a treap
+	 * with all keys in the range is not looked at.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> ImmutableTreapValue<K, V> removeRange(ImmutableTreapValue<K, V> root, K lo, K hi,
+			Comparator<? super K> comparator) {
+		if (isEmpty(root) || (lo != null && hi != null && compare(lo, hi, comparator) > 0)) {
+			return root;
+		}
+		if ((lo == null || compare(lo, minKey(root), comparator) <= 0)
+				&& (hi == null || compare(maxKey(root), hi, comparator) <= 0)) {
+			return createEmpty(aggregatorsOf(root)); // All keys are in the range
+		}
+		Object[] rightWriteBack = new Object[1];
+		ImmutableTreapValue<K, V> left = createEmpty(aggregatorsOf(root));
+		ImmutableTreapValue<K, V> rest = root;
+		if (lo != null) {
+			left = splitAtKey(root, lo, false, comparator, rightWriteBack);
+			rest = (ImmutableTreapValue<K, V>) rightWriteBack[0];
+		}
+		ImmutableTreapValue<K, V> right = createEmpty(aggregatorsOf(root));
+		if (hi != null) {
+			splitAtKey(rest, hi, true, comparator, rightWriteBack);
+			right = (ImmutableTreapValue<K, V>) rightWriteBack[0];
+		}
+		ImmutableTreapValue<K, V> newRoot = join(left, right);
+		if (size(newRoot) == size(root)) {
+			return root; // Nothing was removed
+		}
+		return newRoot;
+	}
+
+	/*
+	 * Splits the treap so that the rank smallest keys are in the returned
+	 * treap and the other keys are in the treap written to
+	 * rightWriteBack[0]. Only the nodes on the path to the split point are
+	 * copied.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> ImmutableTreapValue<K, V> splitAtRank(ImmutableTreapValue<K, V> root, int rank,
+			Object[] rightWriteBack) {
+		return splitAtRankHelper((Node<K, V>) root, rank, rightWriteBack);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> Node<K, V> splitAtRankHelper(Node<K, V> node, int rank, Object[] rightWriteBack) {
+		if (node instanceof ExternalNode) {
+			ExternalNode<K, V> nodeE = (ExternalNode<K, V>) node;
+			rightWriteBack[0] = nodeE.subNode(rank, nodeE.size());
+			return nodeE.subNode(0, rank);
+		}
+		InternalNode<K, V> nodeI = (InternalNode<K, V>) node;
+		int leftSize = nodeI.getLeft().size();
+		if (rank <= leftSize) {
+			Node<K, V> left = splitAtRankHelper(nodeI.getLeft(), rank, rightWriteBack);
+			Node<K, V> rightOfLeft = (Node<K, V>) rightWriteBack[0];
+			if (isEmpty(rightOfLeft)) {
+				rightWriteBack[0] = nodeI.getRight();
+			} else {
+				rightWriteBack[0] = new InternalNode<K, V>(nodeI.getKey(), rightOfLeft, nodeI.getRight(),
+						nodeI.getWeight());
+			}
+			return left;
+		} else {
+			Node<K, V> leftOfRight = splitAtRankHelper(nodeI.getRight(), rank - leftSize, rightWriteBack);
+			if (isEmpty(leftOfRight)) {
+				return nodeI.getLeft();
+			}
+			return new InternalNode<K, V>(nodeI.getKey(), nodeI.getLeft(), leftOfRight, nodeI.getWeight());
+		}
+	}
+
 	/*
 	 * Stack should be empty when calling this function After the call the top of
 	 * the stack will contain the root of a join of the two input trees (also
@@ -827,6 +1345,23 @@ public class ImmutableTreapMap {
 		// return join(left, right);
 	}
 
+	/*
+	 * Joins the treaps in roots[from, to) (which must be in key order) with
+	 * cheapJoin. The treaps are joined as a balanced tree, so the depth of
+	 * the result only grows logarithmically with the number of treaps.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> ImmutableTreapValue<K, V> cheapJoinAll(Object[] roots, int from, int to) {
+		if (from >= to) {
+			return createEmpty(null);
+		} else if (to - from == 1) {
+			return (ImmutableTreapValue<K, V>) roots[from];
+		}
+		int middle = (from + to) >>> 1;
+		return cheapJoin(ImmutableTreapMap.<K, V> cheapJoinAll(roots, from, middle),
+				ImmutableTreapMap.<K, V> cheapJoinAll(roots, middle, to));
+	}
+
 	@SuppressWarnings("unchecked")
 	private static <K, V> Node<K, V> handleInsertedInternalNode(@SuppressWarnings("rawtypes") Stack<Node> stack,
 			InternalNode<K, V> nodeClone) {
@@ -840,7 +1375,10 @@ public class ImmutableTreapMap {
 					// do right rotation
 					parentClone.left = nodeClone.right;
 					nodeClone.right = parentClone;
+					parentClone.updateSizeAndAggregates();
+					nodeClone.updateSizeAndAggregates();
 				} else {
+					parentClone.updateSizeAndAggregates();
 					nodeClone = parentClone;
 				}
 			} else {
@@ -849,7 +1387,10 @@ public class ImmutableTreapMap {
 					// do left rotation
 					parentClone.right = nodeClone.left;
 					nodeClone.left = parentClone;
+					parentClone.updateSizeAndAggregates();
+					nodeClone.updateSizeAndAggregates();
 				} else {
+					parentClone.updateSizeAndAggregates();
 					nodeClone = parentClone;
 				}
 			}
@@ -998,10 +1539,413 @@ public class ImmutableTreapMap {
 		}
 	}
 
+	@SuppressWarnings("unchecked")
 	public static <K, V> int size(ImmutableTreapValue<K, V> root) {
-		threadLocalBuffers.get().sizeCounter = 0;
-		traverseAllItems(root, (k, v) -> threadLocalBuffers.get().sizeCounter++);
-		return threadLocalBuffers.get().sizeCounter;
+		return ((Node<K, V>) root).size();
+	}
+
+	/*
+	 * Returns the number of keys that are less than key (or less than or
+	 * equal to key if inclusive is true).
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> int rank(ImmutableTreapValue<K, V> root, K key, boolean inclusive,
+			Comparator<? super K> comparator) {
+		Node<K, V> currentNode = (Node<K, V>) root;
+		int rank = 0;
+		while (currentNode instanceof InternalNode) {
+			InternalNode<K, V> currentNodeInt = (InternalNode<K, V>) currentNode;
+			if (compare(key, currentNodeInt.getKey(), comparator) < 0) {
+				currentNode = currentNodeInt.getLeft();
+			} else {
+				rank = rank + currentNodeInt.getLeft().size();
+				currentNode = currentNodeInt.getRight();
+			}
+		}
+		int index = ((ExternalNode<K, V>) currentNode).indexOfKeyInNode(key, comparator);
+		if (index >= 0) {
+			return rank + (inclusive ? index + 1 : index);
+		} else {
+			return rank + (-1) * (index + 1);
+		}
+	}
+
+	/*
+	 * Returns the key with the given rank (the smallest key has rank 0) or
+	 * null if there are not more than rank keys.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> K select(ImmutableTreapValue<K, V> root, int rank) {
+		Node<K, V> currentNode = (Node<K, V>) root;
+		if (rank < 0 || rank >= currentNode.size()) {
+			return null;
+		}
+		while (currentNode instanceof InternalNode) {
+			InternalNode<K, V> currentNodeInt = (InternalNode<K, V>) currentNode;
+			int leftSize = currentNodeInt.getLeft().size();
+			if (rank < leftSize) {
+				currentNode = currentNodeInt.getLeft();
+			} else {
+				rank = rank - leftSize;
+				currentNode = currentNodeInt.getRight();
+			}
+		}
+		return (K) ((ExternalNode<K, V>) currentNode).getKeys()[rank];
+	}
+
+	/*
+	 * Iterates over the items with ranks in [fromRank, toRank), in
+	 * ascending order or, if descending is true, in descending order. It
+	 * starts by going down to the first item using the subtree sizes and
+	 * then keeps the path in a stack, so each step takes amortized constant
+	 * time.
+	 */
+	public static final class RankIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+		private final Stack<InternalNode<K, V>> stack = new Stack<InternalNode<K, V>>();
+		private final boolean descending;
+		private ExternalNode<K, V> leaf;
+		private int index;
+		private int remaining;
+
+		@SuppressWarnings("unchecked")
+		public RankIterator(ImmutableTreapValue<K, V> root, int fromRank, int toRank, boolean descending) {
+			this.descending = descending;
+			this.remaining = Math.max(0, toRank - fromRank);
+			if (remaining == 0) {
+				return;
+			}
+			int rank = descending ? toRank - 1 : fromRank;
+			Node<K, V> node = (Node<K, V>) root;
+			while (node instanceof InternalNode) {
+				InternalNode<K, V> nodeI = (InternalNode<K, V>) node;
+				int leftSize = nodeI.getLeft().size();
+				if (rank < leftSize) {
+					if (!descending) {
+						stack.push(nodeI);
+					}
+					node = nodeI.getLeft();
+				} else {
+					rank = rank - leftSize;
+					if (descending) {
+						stack.push(nodeI);
+					}
+					node = nodeI.getRight();
+				}
+			}
+			leaf = (ExternalNode<K, V>) node;
+			index = rank;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Map.Entry<K, V> next() {
+			if (remaining == 0) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<K, V>((K) leaf.keys[index],
+					(V) leaf.values[index]);
+			remaining--;
+			if (remaining > 0) {
+				moveToNextItem();
+			}
+			return entry;
+		}
+
+		/*
+		 * Calls action with the remaining items without creating entry
+		 * objects
+		 */
+		@SuppressWarnings("unchecked")
+		public void forEachRemainingItem(BiConsumer<? super K, ? super V> action) {
+			while (remaining > 0) {
+				if (descending) {
+					int n = Math.min(remaining, index + 1);
+					for (int i = index; i > index - n; i--) {
+						action.accept((K) leaf.keys[i], (V) leaf.values[i]);
+					}
+					index = index - n + 1;
+					remaining = remaining - n;
+				} else {
+					int n = Math.min(remaining, leaf.keys.length - index);
+					for (int i = index; i < index + n; i++) {
+						action.accept((K) leaf.keys[i], (V) leaf.values[i]);
+					}
+					index = index + n - 1;
+					remaining = remaining - n;
+				}
+				if (remaining > 0) {
+					moveToNextItem();
+				}
+			}
+		}
+
+		private void moveToNextItem() {
+			if (descending) {
+				index--;
+				while (index < 0) {
+					Node<K, V> node = stack.pop().getLeft();
+					while (node instanceof InternalNode) {
+						stack.push((InternalNode<K, V>) node);
+						node = ((InternalNode<K, V>) node).getRight();
+					}
+					leaf = (ExternalNode<K, V>) node;
+					index = leaf.keys.length - 1;
+				}
+			} else {
+				index++;
+				while (index >= leaf.keys.length) {
+					Node<K, V> node = stack.pop().getRight();
+					while (node instanceof InternalNode) {
+						stack.push((InternalNode<K, V>) node);
+						node = ((InternalNode<K, V>) node).getLeft();
+					}
+					leaf = (ExternalNode<K, V>) node;
+					index = 0;
+				}
+			}
+		}
+	}
+
+	/*
+	 * A spliterator over map entries that can also give the remaining
+	 * items without creating entry objects
+	 */
+	public static interface ItemSpliterator<K, V> extends Spliterator<Map.Entry<K, V>> {
+		void forEachRemainingItem(BiConsumer<? super K, ? super V> action);
+	}
+
+	/*
+	 * A spliterator over the items with ranks in [fromRank, toRank). It is
+	 * split at the internal nodes, so a treap created with cheapJoinAll is
+	 * first split at the borders between the joined treaps. Leaves are not
+	 * split since they contain at most DEGREE items.
+	 */
+	public static final class RankSpliterator<K, V> implements ItemSpliterator<K, V> {
+		private final Comparator<? super K> comparator;
+		private Node<K, V> node;
+		/* The range is relative to node */
+		private int fromRank;
+		private int toRank;
+		private RankIterator<K, V> iterator = null;
+
+		@SuppressWarnings("unchecked")
+		public RankSpliterator(ImmutableTreapValue<K, V> root, int fromRank, int toRank,
+				Comparator<? super K> comparator) {
+			this.node = (Node<K, V>) root;
+			this.fromRank = fromRank;
+			this.toRank = Math.max(fromRank, toRank);
+			this.comparator = comparator;
+		}
+
+		@Override
+		public RankSpliterator<K, V> trySplit() {
+			/* The items that have been returned are not in the range anymore */
+			iterator = null;
+			while (toRank - fromRank > 1 && node instanceof InternalNode) {
+				InternalNode<K, V> nodeI = (InternalNode<K, V>) node;
+				int leftSize = nodeI.getLeft().size();
+				if (toRank <= leftSize) {
+					node = nodeI.getLeft();
+				} else if (fromRank >= leftSize) {
+					node = nodeI.getRight();
+					fromRank = fromRank - leftSize;
+					toRank = toRank - leftSize;
+				} else {
+					RankSpliterator<K, V> prefix = new RankSpliterator<K, V>(nodeI.getLeft(), fromRank, leftSize,
+							comparator);
+					node = nodeI.getRight();
+					fromRank = 0;
+					toRank = toRank - leftSize;
+					return prefix;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+			if (fromRank >= toRank) {
+				return false;
+			}
+			if (iterator == null) {
+				iterator = new RankIterator<K, V>(node, fromRank, toRank, false);
+			}
+			fromRank++;
+			action.accept(iterator.next());
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super Map.Entry<K, V>> action) {
+			if (fromRank >= toRank) {
+				return;
+			}
+			RankIterator<K, V> it = iterator == null ? new RankIterator<K, V>(node, fromRank, toRank, false) : iterator;
+			fromRank = toRank;
+			while (it.hasNext()) {
+				action.accept(it.next());
+			}
+		}
+
+		@Override
+		public void forEachRemainingItem(BiConsumer<? super K, ? super V> action) {
+			if (fromRank >= toRank) {
+				return;
+			}
+			RankIterator<K, V> it = iterator == null ? new RankIterator<K, V>(node, fromRank, toRank, false) : iterator;
+			fromRank = toRank;
+			it.forEachRemainingItem(action);
+		}
+
+		@Override
+		public long estimateSize() {
+			return toRank - fromRank;
+		}
+
+		@Override
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.SIZED
+					| Spliterator.SUBSIZED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public Comparator<? super Map.Entry<K, V>> getComparator() {
+			if (comparator == null) {
+				return (Comparator) Map.Entry.comparingByKey();
+			}
+			return Map.Entry.comparingByKey(comparator);
+		}
+	}
+
+	/*
+	 * Returns the aggregate of the values of all keys in [lo, hi], where
+	 * aggregator is aggregatorsOf(root)[index]. null as lo or hi means no
+	 * bound. Only the nodes on the paths to lo and hi are visited, the
+	 * subtrees between the paths are represented by their stored
+	 * aggregates.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V, A> A aggregate(ImmutableTreapValue<K, V> root, K lo, K hi, int index,
+			Aggregator<? super V, A> aggregator, Comparator<? super K> comparator) {
+		Node<K, V> node = (Node<K, V>) root;
+		if (lo == null && hi == null) {
+			return storedAggregate(node, index, aggregator);
+		}
+		while (node instanceof InternalNode) {
+			InternalNode<K, V> nodeI = (InternalNode<K, V>) node;
+			if (hi != null && compare(hi, nodeI.getKey(), comparator) < 0) {
+				node = nodeI.getLeft();
+			} else if (lo != null && compare(lo, nodeI.getKey(), comparator) >= 0) {
+				node = nodeI.getRight();
+			} else {
+				// Keys in the left subtree are less than or equal to hi and keys
+				// in the right subtree are greater than lo
+				return aggregator.combine(aggregate(nodeI.getLeft(), lo, null, index, aggregator, comparator),
+						aggregate(nodeI.getRight(), null, hi, index, aggregator, comparator));
+			}
+		}
+		ExternalNode<K, V> nodeE = (ExternalNode<K, V>) node;
+		A result = aggregator.identity();
+		for (int i = 0; i < nodeE.size(); i++) {
+			K key = (K) nodeE.getKeys()[i];
+			if ((lo == null || compare(lo, key, comparator) <= 0) && (hi == null || compare(key, hi, comparator) <= 0)) {
+				result = aggregator.combine(result, aggregator.lift((V) nodeE.getValues()[i]));
+			}
+		}
+		return result;
+	}
+
+	// An empty treap may come from cheapJoinAll and have no aggregates
+	@SuppressWarnings("unchecked")
+	private static <K, V, A> A storedAggregate(Node<K, V> node, int index, Aggregator<? super V, A> aggregator) {
+		if (isEmpty(node)) {
+			return aggregator.identity();
+		}
+		return (A) aggregatesOf(node)[index];
+	}
+
+	/*
+	 * Returns a treap where the value of every key in [lo, hi] has been
+	 * replaced with operation.apply(key, value). Keys for which the
+	 * operation returns null are removed. null as lo or hi means no bound.
+	 * Only the external nodes containing keys in the range and the internal
+	 * nodes on the paths to them are copied; subtrees outside the range are
+	 * shared with the given treap.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> ImmutableTreapValue<K, V> updateValuesInRange(ImmutableTreapValue<K, V> root, K lo, K hi,
+			BiFunction<? super K, ? super V, ? extends V> operation, Comparator<? super K> comparator) {
+		if (lo != null && hi != null && compare(lo, hi, comparator) > 0) {
+			return root;
+		}
+		return updateValuesInRangeHelper((Node<K, V>) root, lo, hi, operation, comparator);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> Node<K, V> updateValuesInRangeHelper(Node<K, V> node, K lo, K hi,
+			BiFunction<? super K, ? super V, ? extends V> operation, Comparator<? super K> comparator) {
+		if (node instanceof InternalNode) {
+			InternalNode<K, V> nodeI = (InternalNode<K, V>) node;
+			Node<K, V> left = nodeI.getLeft();
+			Node<K, V> right = nodeI.getRight();
+			// Keys in the left subtree are less than the key of the node
+			if (lo == null || compare(lo, nodeI.getKey(), comparator) < 0) {
+				left = updateValuesInRangeHelper(left, lo, hi, operation, comparator);
+			}
+			if (hi == null || compare(hi, nodeI.getKey(), comparator) >= 0) {
+				right = updateValuesInRangeHelper(right, lo, hi, operation, comparator);
+			}
+			if (left == nodeI.getLeft() && right == nodeI.getRight()) {
+				return node;
+			} else if (isEmpty(left)) {
+				return right;
+			} else if (isEmpty(right)) {
+				return left;
+			}
+			return new InternalNode<K, V>(nodeI.getKey(), left, right, nodeI.getWeight());
+		}
+		ExternalNode<K, V> nodeE = (ExternalNode<K, V>) node;
+		// The keys are never modified, so they are only copied if a key is
+		// removed. Entries are moved down to index size after that.
+		Object[] keys = nodeE.keys;
+		Object[] values = null;
+		int size = 0;
+		for (int i = 0; i < nodeE.keys.length; i++) {
+			K key = (K) nodeE.keys[i];
+			Object value = nodeE.values[i];
+			if ((lo == null || compare(lo, key, comparator) <= 0) && (hi == null || compare(key, hi, comparator) <= 0)) {
+				if (values == null) {
+					values = Arrays.copyOf(nodeE.values, nodeE.values.length);
+				}
+				value = operation.apply(key, (V) value);
+				if (value == null) {
+					if (keys == nodeE.keys) {
+						keys = Arrays.copyOf(nodeE.keys, nodeE.keys.length);
+					}
+					continue;
+				}
+			}
+			if (values != null) {
+				values[size] = value;
+			}
+			if (keys != nodeE.keys) {
+				keys[size] = key;
+			}
+			size++;
+		}
+		if (values == null) {
+			return node;
+		}
+		if (size == nodeE.keys.length) {
+			return new ExternalNode<K, V>(nodeE.keys, values, nodeE.aggregators);
+		}
+		return new ExternalNode<K, V>(Arrays.copyOf(keys, size), Arrays.copyOf(values, size), nodeE.aggregators);
 	}
 
 	public static <K, V> boolean isEmpty(ImmutableTreapValue<K, V> root) {
@@ -1107,7 +2051,7 @@ public class ImmutableTreapMap {
 	public static void main(String[] args) {
 		{
 			int size = 100;
-			ImmutableTreapValue<Integer, Integer> node = createEmpty();
+			ImmutableTreapValue<Integer, Integer> node = createEmpty(null);
 			for (int i = 0; i < size; i++) {
 				System.out.println("i: " + i);
 				node = put(node, i, i, null);
@@ -0,0 +1,521 @@
+/*
+ *  Copyright 2018 Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ *  This file is part of catrees.
+ *
+ *  catrees is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  catrees is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with catrees.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.winsh.ds.immutable;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import me.winsh.ds.immutable.ImmutableTreapMap.ImmutableTreapValue;
+
+/**
+ * A read-only NavigableMap view of an immutable treap. The treap can never
+ * change, so the view can be read and iterated without any
+ * synchronization.
+ *
+ * @author Kjell Winblad (kjellwinblad@gmail.com, http://winsh.me)
+ *
+ */
+public class ImmutableTreapSnapshot<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+	/*
+	 * A view is the items of the treap with ranks in [fromRank, toRank), so
+	 * sub maps and descending maps share the treap and are created in
+	 * O(log(n)) time. Keys given to the sub map methods are not checked
+	 * against the range of the view; the resulting ranges are clamped to it
+	 * instead.
+	 */
+	private final ImmutableTreapValue<K, V> root;
+	private final Comparator<? super K> comparator;
+	private final int fromRank;
+	private final int toRank;
+	private final boolean descending;
+
+	public ImmutableTreapSnapshot(ImmutableTreapValue<K, V> root, Comparator<? super K> comparator) {
+		this(root, comparator, 0, ImmutableTreapMap.size(root), false);
+	}
+
+	private ImmutableTreapSnapshot(ImmutableTreapValue<K, V> root, Comparator<? super K> comparator, int fromRank,
+			int toRank, boolean descending) {
+		this.root = root;
+		this.comparator = comparator;
+		this.fromRank = fromRank;
+		this.toRank = Math.max(fromRank, toRank);
+		this.descending = descending;
+	}
+
+	private ImmutableTreapSnapshot<K, V> createView(int from, int to, boolean descending) {
+		return new ImmutableTreapSnapshot<K, V>(root, comparator, Math.max(from, fromRank), Math.min(to, toRank),
+				descending);
+	}
+
+	// === Ranks ===================================
+
+	private int ceilingIndex(K key) {
+		return ImmutableTreapMap.rank(root, key, false, comparator);
+	}
+
+	private int higherIndex(K key) {
+		return ImmutableTreapMap.rank(root, key, true, comparator);
+	}
+
+	private int floorIndex(K key) {
+		return higherIndex(key) - 1;
+	}
+
+	private int lowerIndex(K key) {
+		return ceilingIndex(key) - 1;
+	}
+
+	/* The first rank of the keys that are greater than (or equal to) key */
+	private int startIndex(K key, boolean inclusive) {
+		return inclusive ? ceilingIndex(key) : higherIndex(key);
+	}
+
+	/* The first rank after the keys that are less than (or equal to) key */
+	private int endIndex(K key, boolean inclusive) {
+		return inclusive ? higherIndex(key) : ceilingIndex(key);
+	}
+
+	private Map.Entry<K, V> entryAt(int rank) {
+		if (rank < fromRank || rank >= toRank) {
+			return null;
+		}
+		return new ImmutableTreapMap.RankIterator<K, V>(root, rank, rank + 1, false).next();
+	}
+
+	/*
+	 * The keys given to the navigation methods may be outside the view, so
+	 * the ranks are moved into it when possible
+	 */
+	private Map.Entry<K, V> entryAtOrBefore(int rank) {
+		return entryAt(Math.min(rank, toRank - 1));
+	}
+
+	private Map.Entry<K, V> entryAtOrAfter(int rank) {
+		return entryAt(Math.max(rank, fromRank));
+	}
+
+	private static <K> K keyOrNull(Map.Entry<K, ?> entry) {
+		return entry == null ? null : entry.getKey();
+	}
+
+	private static <K> K keyOrException(Map.Entry<K, ?> entry) {
+		if (entry == null) {
+			throw new NoSuchElementException();
+		}
+		return entry.getKey();
+	}
+
+	private int compareInViewOrder(K key1, K key2) {
+		int result = ImmutableTreapMap.compare(key1, key2, comparator);
+		return descending ? -result : result;
+	}
+
+	// === Map =====================================
+
+	@Override
+	public int size() {
+		return toRank - fromRank;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return fromRank == toRank;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		int rank = ceilingIndex((K) key);
+		if (rank < fromRank || rank >= toRank) {
+			return null;
+		}
+		return ImmutableTreapMap.get(root, (K) key, comparator);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean containsKey(Object key) {
+		int rank = ceilingIndex((K) key);
+		return rank >= fromRank && rank < toRank && higherIndex((K) key) > rank;
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<Map.Entry<K, V>>() {
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new ImmutableTreapMap.RankIterator<K, V>(root, fromRank, toRank, descending);
+			}
+
+			@Override
+			public Spliterator<Map.Entry<K, V>> spliterator() {
+				if (descending) {
+					return super.spliterator();
+				}
+				return new ImmutableTreapMap.RankSpliterator<K, V>(root, fromRank, toRank, comparator);
+			}
+
+			@Override
+			public int size() {
+				return ImmutableTreapSnapshot.this.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof Map.Entry)) {
+					return false;
+				}
+				Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+				V value = get(entry.getKey());
+				return value != null && value.equals(entry.getValue());
+			}
+		};
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return navigableKeySet();
+	}
+
+	// === NavigableMap ============================
+
+	@Override
+	public Comparator<? super K> comparator() {
+		if (descending) {
+			return Collections.reverseOrder(comparator);
+		}
+		return comparator;
+	}
+
+	@Override
+	public Map.Entry<K, V> firstEntry() {
+		return entryAt(descending ? toRank - 1 : fromRank);
+	}
+
+	@Override
+	public Map.Entry<K, V> lastEntry() {
+		return entryAt(descending ? fromRank : toRank - 1);
+	}
+
+	@Override
+	public K firstKey() {
+		return keyOrException(firstEntry());
+	}
+
+	@Override
+	public K lastKey() {
+		return keyOrException(lastEntry());
+	}
+
+	@Override
+	public Map.Entry<K, V> lowerEntry(K key) {
+		return descending ? entryAtOrAfter(higherIndex(key)) : entryAtOrBefore(lowerIndex(key));
+	}
+
+	@Override
+	public Map.Entry<K, V> floorEntry(K key) {
+		return descending ? entryAtOrAfter(ceilingIndex(key)) : entryAtOrBefore(floorIndex(key));
+	}
+
+	@Override
+	public Map.Entry<K, V> ceilingEntry(K key) {
+		return descending ? entryAtOrBefore(floorIndex(key)) : entryAtOrAfter(ceilingIndex(key));
+	}
+
+	@Override
+	public Map.Entry<K, V> higherEntry(K key) {
+		return descending ? entryAtOrBefore(lowerIndex(key)) : entryAtOrAfter(higherIndex(key));
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return keyOrNull(lowerEntry(key));
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return keyOrNull(floorEntry(key));
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return keyOrNull(ceilingEntry(key));
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return keyOrNull(higherEntry(key));
+	}
+
+	@Override
+	public Map.Entry<K, V> pollFirstEntry() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Map.Entry<K, V> pollLastEntry() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public NavigableMap<K, V> descendingMap() {
+		return new ImmutableTreapSnapshot<K, V>(root, comparator, fromRank, toRank, !descending);
+	}
+
+	@Override
+	public NavigableSet<K> navigableKeySet() {
+		return new KeySet<K>(this);
+	}
+
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	@Override
+	public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		if (compareInViewOrder(fromKey, toKey) > 0) {
+			throw new IllegalArgumentException("fromKey > toKey");
+		}
+		if (descending) {
+			return createView(startIndex(toKey, toInclusive), endIndex(fromKey, fromInclusive), true);
+		} else {
+			return createView(startIndex(fromKey, fromInclusive), endIndex(toKey, toInclusive), false);
+		}
+	}
+
+	@Override
+	public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		if (descending) {
+			return createView(startIndex(toKey, inclusive), toRank, true);
+		} else {
+			return createView(fromRank, endIndex(toKey, inclusive), false);
+		}
+	}
+
+	@Override
+	public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		if (descending) {
+			return createView(fromRank, endIndex(fromKey, inclusive), true);
+		} else {
+			return createView(startIndex(fromKey, inclusive), toRank, false);
+		}
+	}
+
+	@Override
+	public SortedMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public SortedMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public SortedMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	// === Key set =================================
+
+	private static final class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+		private final NavigableMap<K, ?> map;
+
+		KeySet(NavigableMap<K, ?> map) {
+			this.map = map;
+		}
+
+		@Override
+		public Iterator<K> iterator() {
+			final Iterator<? extends Map.Entry<K, ?>> entries = map.entrySet().iterator();
+			return new Iterator<K>() {
+				@Override
+				public boolean hasNext() {
+					return entries.hasNext();
+				}
+
+				@Override
+				public K next() {
+					return entries.next().getKey();
+				}
+			};
+		}
+
+		@Override
+		public Spliterator<K> spliterator() {
+			return new KeySpliterator<K>(map.entrySet().spliterator(), map.comparator());
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return map.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return map.containsKey(o);
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			return map.comparator();
+		}
+
+		@Override
+		public K first() {
+			return map.firstKey();
+		}
+
+		@Override
+		public K last() {
+			return map.lastKey();
+		}
+
+		@Override
+		public K lower(K key) {
+			return map.lowerKey(key);
+		}
+
+		@Override
+		public K floor(K key) {
+			return map.floorKey(key);
+		}
+
+		@Override
+		public K ceiling(K key) {
+			return map.ceilingKey(key);
+		}
+
+		@Override
+		public K higher(K key) {
+			return map.higherKey(key);
+		}
+
+		@Override
+		public K pollFirst() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public K pollLast() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public NavigableSet<K> descendingSet() {
+			return map.descendingMap().navigableKeySet();
+		}
+
+		@Override
+		public Iterator<K> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		@Override
+		public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+			return map.subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+			return map.headMap(toElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+			return map.tailMap(fromElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public SortedSet<K> subSet(K fromElement, K toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> headSet(K toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> tailSet(K fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+
+	/* Splits like the entry spliterator of the map and returns the keys */
+	private static final class KeySpliterator<K> implements Spliterator<K> {
+		private final Spliterator<? extends Map.Entry<K, ?>> entries;
+		private final Comparator<? super K> comparator;
+
+		KeySpliterator(Spliterator<? extends Map.Entry<K, ?>> entries, Comparator<? super K> comparator) {
+			this.entries = entries;
+			this.comparator = comparator;
+		}
+
+		@Override
+		public Spliterator<K> trySplit() {
+			Spliterator<? extends Map.Entry<K, ?>> prefix = entries.trySplit();
+			return prefix == null ? null : new KeySpliterator<K>(prefix, comparator);
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super K> action) {
+			return entries.tryAdvance((entry) -> action.accept(entry.getKey()));
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super K> action) {
+			entries.forEachRemaining((entry) -> action.accept(entry.getKey()));
+		}
+
+		@Override
+		public long estimateSize() {
+			return entries.estimateSize();
+		}
+
+		@Override
+		public int characteristics() {
+			return entries.characteristics();
+		}
+
+		@Override
+		public Comparator<? super K> getComparator() {
+			return comparator;
+		}
+	}
+}
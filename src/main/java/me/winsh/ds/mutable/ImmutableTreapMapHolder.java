@@ -20,17 +20,19 @@
 package me.winsh.ds.mutable;
 
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.StampedLock;
-import java.util.function.BiFunction;
 import java.util.function.Consumer;
 
 import me.winsh.ds.immutable.ImmutableTreapMap;
+import me.winsh.ds.immutable.ImmutableTreapMap.Aggregator;
 import me.winsh.ds.immutable.ImmutableTreapMap.ImmutableTreapValue;
 import me.winsh.ds.mutable.interfaces.AnyKeyProviding;
 import me.winsh.ds.mutable.interfaces.Invalidatable;
@@ -44,15 +46,17 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
     private final StampedLock sleepingLock;
     private final Lock sleepingWLock;//= lock.asWriteLock();
     private final Lock sleepingRLock;//= lock.asReadLock();
+    //Maintained by the contention policy of the CA tree
     private int statLockStatistics = 0;
-    private boolean valid = true;
+    private long statLockStatisticsTimestamp = 0;
+    private volatile boolean valid = true;
     private K maxKey = null;
     //Use setRoot and getRoot to access the root
     private Object parent = null;
-    private static final int STAT_LOCK_HIGH_CONTENTION_LIMIT = 1000;
-    private static final int STAT_LOCK_LOW_CONTENTION_LIMIT = -1000;
-    private static final int STAT_LOCK_FAILURE_CONTRIB = 250;
-    private static final int STAT_LOCK_SUCCESS_CONTRIB = 1;
+    //All keys in this base node are greater than or equal to
+    //routeLowerBound and less than routeUpperBound (null = no bound)
+    private Object routeLowerBound = null;
+    private Object routeUpperBound = null;
 	
 	
 	
@@ -64,12 +68,29 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
         return parent;
     }
 
+    /**
+     * The route key that bounds this base node from above or null if this
+     * is the rightmost base node. It is maintained by split and join and
+     * does not change while the base node is valid.
+     */
+    public Object getRouteUpperBound(){
+        return routeUpperBound;
+    }
+
+    /**
+     * The route key that bounds this base node from below or null if this
+     * is the leftmost base node.
+     */
+    public Object getRouteLowerBound(){
+        return routeLowerBound;
+    }
+
     //=== Public functions and helper functions ===
 
     //=== Any key providing functions =============
 
     public K anyKey(){
-        return ImmutableTreapMap.minKey(root);
+        return ImmutableTreapMap.minKey(getRoot());
     }
 
     //=== Invalidatable functions =================
@@ -82,6 +103,322 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
         valid = false;
     }
 
+    //=== Lock-free update functions ==============
+
+    /*
+     * When lock-free updates are enabled, a new root is installed with a
+     * CAS instead of a plain write. A base node that is about to be split
+     * or joined is frozen by replacing its root with a FrozenRoot wrapper
+     * so that all subsequent CAS attempts fail. A frozen base node can
+     * also hold a staged root that replaces root for readers when the
+     * update it belongs to is committed.
+     */
+    private static final class FrozenRoot<K, V> implements ImmutableTreapValue<K, V> {
+        final ImmutableTreapValue<K, V> root;
+        final ImmutableTreapValue<K, V> stagedRoot;
+        final StagedUpdate update;
+
+        FrozenRoot(ImmutableTreapValue<K, V> root) {
+            this(root, null, null);
+        }
+
+        FrozenRoot(ImmutableTreapValue<K, V> root, ImmutableTreapValue<K, V> stagedRoot, StagedUpdate update) {
+            this.root = root;
+            this.stagedRoot = stagedRoot;
+            this.update = update;
+        }
+    }
+
+    /**
+     * An update of several base nodes. The new roots are staged in the
+     * base nodes with stageRoot and become visible to readers all at once
+     * when commit is called.
+     */
+    public static final class StagedUpdate {
+        private volatile boolean committed = false;
+
+        public void commit(){
+            committed = true;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ImmutableTreapMapHolder, ImmutableTreapValue> rootUpdater =
+        AtomicReferenceFieldUpdater.newUpdater(ImmutableTreapMapHolder.class, ImmutableTreapValue.class, "root");
+
+    public static final int PUT = 0;
+    public static final int PUT_IF_ABSENT = 1;
+    public static final int REMOVE = 2;
+
+    public boolean isLockFree(){
+        return lockFreeUpdates;
+    }
+
+    /**
+     * Freezes the base node so that no lock-free update can succeed after
+     * this call returns. Must be called with the write lock held before the
+     * contents of the base node is moved to other base nodes. Does nothing
+     * when lock-free updates are disabled.
+     */
+    public void freeze(){
+        if (!lockFreeUpdates) {
+            return;
+        }
+        while (true) {
+            ImmutableTreapValue<K, V> currentRoot = root;
+            if (currentRoot instanceof FrozenRoot ||
+                rootUpdater.compareAndSet(this, currentRoot, new FrozenRoot<K, V>(currentRoot))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Undoes freeze() for a base node that is still valid. Must be called
+     * with the write lock held.
+     */
+    @SuppressWarnings("unchecked")
+    public void unfreeze(){
+        ImmutableTreapValue<K, V> currentRoot = root;
+        if (currentRoot instanceof FrozenRoot) {
+            root = ((FrozenRoot<K, V>) currentRoot).root;
+        }
+    }
+
+    public static final int FROZEN = -1;
+
+    /**
+     * Puts without taking the lock. Returns FROZEN if the base node has
+     * been frozen, in which case the operation needs to be retried from
+     * the route layer. Otherwise the number of failed CAS attempts is
+     * returned and the previous value can be obtained from
+     * ImmutableTreapMap.getPrevValue().
+     */
+    public int tryLockFreePut(K key, V value){
+        return casUpdate(PUT, key, value);
+    }
+
+    public int tryLockFreePutIfAbsent(K key, V value){
+        return casUpdate(PUT_IF_ABSENT, key, value);
+    }
+
+    public int tryLockFreeRemove(K key){
+        return casUpdate(REMOVE, key, null);
+    }
+
+    private int casUpdate(int operation, K key, V value){
+        sampleUpdatedKey(key);
+        int failedAttempts = 0;
+        while (true) {
+            ImmutableTreapValue<K, V> currentRoot = root;
+            if (currentRoot instanceof FrozenRoot) {
+                return FROZEN;
+            }
+            ImmutableTreapValue<K, V> newRoot;
+            if (operation == PUT) {
+                newRoot = ImmutableTreapMap.put(currentRoot, key, value, comparator);
+            } else if (operation == PUT_IF_ABSENT) {
+                newRoot = ImmutableTreapMap.putIfAbsent(currentRoot, key, value, comparator);
+            } else {
+                newRoot = ImmutableTreapMap.remove(currentRoot, key, comparator);
+            }
+            if (newRoot == currentRoot || rootUpdater.compareAndSet(this, currentRoot, newRoot)) {
+                return failedAttempts;
+            }
+            failedAttempts++;
+        }
+    }
+
+
+    //=== Combining functions =====================
+
+    /*
+     * Threads that fail to get the lock of a base node in combining mode
+     * publish their operation here. The thread that holds the lock applies
+     * all published operations and installs a single new root.
+     */
+    public static final class CombiningRequest<K, V> {
+        private static final int PENDING = 0;
+        private static final int DONE = 1;
+        private static final int RETRY = 2;
+        private final int operation;
+        private final K key;
+        private final V value;
+        private V result;
+        private CombiningRequest<K, V> next;
+        private volatile int status = PENDING;
+
+        private CombiningRequest(int operation, K key, V value) {
+            this.operation = operation;
+            this.key = key;
+            this.value = value;
+        }
+
+        public boolean isPending(){
+            return status == PENDING;
+        }
+
+        /**
+         * Returns true if the operation was applied and false if it has to be
+         * retried on another base node.
+         */
+        public boolean isDone(){
+            return status == DONE;
+        }
+
+        public V getResult(){
+            return result;
+        }
+    }
+
+    private volatile CombiningRequest<K, V> pendingRequests = null;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ImmutableTreapMapHolder, CombiningRequest> pendingRequestsUpdater =
+        AtomicReferenceFieldUpdater.newUpdater(ImmutableTreapMapHolder.class, CombiningRequest.class, "pendingRequests");
+
+    public CombiningRequest<K, V> publishRequest(int operation, K key, V value){
+        CombiningRequest<K, V> request = new CombiningRequest<K, V>(operation, key, value);
+        do {
+            request.next = pendingRequests;
+        } while (!pendingRequestsUpdater.compareAndSet(this, request.next, request));
+        return request;
+    }
+
+    @SuppressWarnings("unchecked")
+    private CombiningRequest<K, V> takePendingRequests(){
+        if (pendingRequests == null) {
+            return null;
+        }
+        CombiningRequest<K, V> requests = pendingRequestsUpdater.getAndSet(this, null);
+        // Reverse to apply the requests in publication order
+        CombiningRequest<K, V> reversed = null;
+        while (requests != null) {
+            CombiningRequest<K, V> next = requests.next;
+            requests.next = reversed;
+            reversed = requests;
+            requests = next;
+        }
+        return reversed;
+    }
+
+    /**
+     * Applies the given operation together with all published requests and
+     * installs the result as the new root. The write lock must be held and
+     * the base node must be valid. Returns the result of the given
+     * operation.
+     */
+    @SuppressWarnings("unchecked")
+    public V combine(int operation, K key, V value){
+        if (pendingRequests == null) {
+            root = applyOperation(getRoot(), operation, key, value);
+            return (V) ImmutableTreapMap.getPrevValue();
+        }
+        // The own operation goes first as it got the lock first
+        CombiningRequest<K, V> own = new CombiningRequest<K, V>(operation, key, value);
+        own.next = takePendingRequests();
+        applyRequests(own);
+        return own.result;
+    }
+
+    /**
+     * Applies all published requests. The write lock must be held and the
+     * base node must be valid.
+     */
+    public void combine(){
+        if (pendingRequests != null) {
+            applyRequests(takePendingRequests());
+        }
+    }
+
+    /*
+     * Sorts the requests by key and works out the result of each request
+     * and the final value of each key. The changed keys are then removed
+     * and put as two sorted batches, so the new root is created with one
+     * pass over the treap instead of one per request.
+     */
+    @SuppressWarnings("unchecked")
+    private void applyRequests(CombiningRequest<K, V> requests){
+        ArrayList<CombiningRequest<K, V>> batch = new ArrayList<CombiningRequest<K, V>>();
+        for (CombiningRequest<K, V> request = requests; request != null; request = request.next) {
+            batch.add(request);
+        }
+        // The sort is stable, so requests for the same key stay in publication order
+        batch.sort((r1, r2) -> compare(r1.key, r2.key));
+        ImmutableTreapValue<K, V> currentRoot = getRoot();
+        Object[] putKeys = new Object[batch.size()];
+        Object[] putValues = new Object[batch.size()];
+        Object[] removeKeys = new Object[batch.size()];
+        int puts = 0;
+        int removes = 0;
+        int i = 0;
+        while (i < batch.size()) {
+            K key = batch.get(i).key;
+            V before = ImmutableTreapMap.get(currentRoot, key, comparator);
+            V current = before;
+            for (; i < batch.size() && compare(batch.get(i).key, key) == 0; i++) {
+                CombiningRequest<K, V> request = batch.get(i);
+                sampleUpdatedKey(request.key);
+                request.result = current;
+                if (request.operation == PUT) {
+                    current = request.value;
+                } else if (request.operation == PUT_IF_ABSENT) {
+                    if (current == null) {
+                        current = request.value;
+                    }
+                } else {
+                    current = null;
+                }
+            }
+            if (current == null) {
+                if (before != null) {
+                    removeKeys[removes++] = key;
+                }
+            } else if (current != before) {
+                putKeys[puts] = key;
+                putValues[puts] = current;
+                puts++;
+            }
+        }
+        ImmutableTreapValue<K, V> newRoot = ImmutableTreapMap.removeAllSorted(currentRoot, removeKeys, 0, removes,
+                comparator);
+        newRoot = ImmutableTreapMap.putAllSorted(newRoot, putKeys, putValues, 0, puts, comparator);
+        if (puts > 0 && (maxKey == null || compare((K) putKeys[puts - 1], maxKey) > 0)) {
+            maxKey = (K) putKeys[puts - 1];
+        }
+        root = newRoot;
+        for (CombiningRequest<K, V> request : batch) {
+            request.status = CombiningRequest.DONE;
+        }
+    }
+
+    /**
+     * Tells all published requests to retry on another base node. Should
+     * be called with the write lock held when the base node is invalid.
+     */
+    public void failPendingRequests(){
+        CombiningRequest<K, V> request = takePendingRequests();
+        while (request != null) {
+            CombiningRequest<K, V> next = request.next;
+            request.status = CombiningRequest.RETRY;
+            request = next;
+        }
+    }
+
+    private ImmutableTreapValue<K, V> applyOperation(ImmutableTreapValue<K, V> currentRoot, int operation, K key, V value){
+        sampleUpdatedKey(key);
+        if (operation == REMOVE) {
+            return ImmutableTreapMap.remove(currentRoot, key, comparator);
+        }
+        if(maxKey == null || compare(key, maxKey) > 0){
+            maxKey = key;
+        }
+        if (operation == PUT) {
+            return ImmutableTreapMap.put(currentRoot, key, value, comparator);
+        } else {
+            return ImmutableTreapMap.putIfAbsent(currentRoot, key, value, comparator);
+        }
+    }
 
     //=== Lock Functions ==========================
 
@@ -90,14 +427,13 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
     		return sleepingWLock.tryLock();
 
     }
+
+    public boolean isLocked(){
+        return sleepingLock.isWriteLocked() || sleepingLock.isReadLocked();
+    }
     
     public void lock(){
-        if (tryLock()) {
-            subFromContentionStatistics();
-            return;
-        }
         lockNoStats();
-        addToContentionStatistics();
     }
     
 	public boolean lockIsContended() {
@@ -113,18 +449,6 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
 
 	}
 
-    public void addToContentionStatistics(){
-    		statLockStatistics += STAT_LOCK_FAILURE_CONTRIB;
-    }
-
-    public void subFromContentionStatistics(){
-   			statLockStatistics -= STAT_LOCK_SUCCESS_CONTRIB;
-    }
-    
-    public void subManyFromContentionStatistics(){
-   			statLockStatistics -= 100;
-    }
-
     public void unlock(){
    			sleepingWLock.unlock();
     }
@@ -151,42 +475,86 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
    			return statLockStatistics;
     }
     
+    public void setStatistics(int statistics){
+   			statLockStatistics = statistics;
+    }
+
     public void resetStatistics(){
    			statLockStatistics = 0;
     }
-    
-    public int getHighContentionLimit(){
-        return STAT_LOCK_HIGH_CONTENTION_LIMIT;
+
+    public long getStatisticsTimestamp(){
+        return statLockStatisticsTimestamp;
+    }
+
+    public void setStatisticsTimestamp(long timestamp){
+        statLockStatisticsTimestamp = timestamp;
     }
 
-    public int getLowContentionLimit(){
-        return STAT_LOCK_LOW_CONTENTION_LIMIT;
+    //Set while a split or join of this base node is scheduled
+    private volatile int adaptationScheduled = 0;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<ImmutableTreapMapHolder> adaptationScheduledUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(ImmutableTreapMapHolder.class, "adaptationScheduled");
+
+    /**
+     * Returns true if the caller is the one that should schedule the
+     * adaptation of this base node, false if it is already scheduled.
+     */
+    public boolean tryMarkAdaptationScheduled(){
+        return adaptationScheduled == 0 && adaptationScheduledUpdater.compareAndSet(this, 0, 1);
     }
 
-    public boolean isHighContentionLimitReached(){
-   			return statLockStatistics > STAT_LOCK_HIGH_CONTENTION_LIMIT;
+    public void clearAdaptationScheduled(){
+        adaptationScheduled = 0;
     }
-    
-    public boolean isLowContentionLimitReached(){
-   			return statLockStatistics < STAT_LOCK_LOW_CONTENTION_LIMIT;
+
+    //=== Hot key sampling ========================
+
+    /*
+     * The keys of the most recent updates are kept in a small ring buffer.
+     * A key that fills at least half of the buffer is considered hot and
+     * split uses it as split point so that the hot keys get their own base
+     * nodes after one or two splits. The buffer is written without
+     * synchronization in the lock-free mode, so it is only a hint.
+     */
+    private static final int HOT_KEY_SAMPLE_SIZE = 8; // Must be a power of two
+    private static final int HOT_KEY_MIN_OCCURRENCES = HOT_KEY_SAMPLE_SIZE / 2;
+    private final Object[] updatedKeySample = new Object[HOT_KEY_SAMPLE_SIZE];
+    private int updatedKeySampleIndex = 0;
+
+    private void sampleUpdatedKey(K key){
+        updatedKeySample[updatedKeySampleIndex++ & (HOT_KEY_SAMPLE_SIZE - 1)] = key;
+    }
+
+    /**
+     * Returns the most frequently updated key among the sampled updates or
+     * null if no key is updated frequently enough to be considered hot.
+     */
+    @SuppressWarnings("unchecked")
+    public K hotKey(){
+        K hotKey = null;
+        int hotKeyOccurrences = HOT_KEY_MIN_OCCURRENCES - 1;
+        for (int i = 0; i < HOT_KEY_SAMPLE_SIZE; i++) {
+            K candidate = (K) updatedKeySample[i];
+            if (candidate == null) {
+                continue;
+            }
+            int occurrences = 0;
+            for (int j = 0; j < HOT_KEY_SAMPLE_SIZE; j++) {
+                Object other = updatedKeySample[j];
+                if (other != null && compare(candidate, (K) other) == 0) {
+                    occurrences++;
+                }
+            }
+            if (occurrences > hotKeyOccurrences) {
+                hotKey = candidate;
+                hotKeyOccurrences = occurrences;
+            }
+        }
+        return hotKey;
     }
-	
-    public final void addAllToList(LinkedList<Map.Entry<K, V>> list){
-		ImmutableTreapMap.traverseAllItems(root, (k,v) -> list.add(
-				new AbstractMap.SimpleImmutableEntry<K,V>(k, v){
-
-
-					/**
-					 * 
-					 */
-					private static final long serialVersionUID = 1L;
-
-					public int hashCode(){
-	                    return k.hashCode();
-	                }
-	            }
-				));
-    } 
 	
 	//END =======================================
 
@@ -202,47 +570,80 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
     }
 	
 	//Number of elements per node (should be 3 or greater)
-    private volatile ImmutableTreapValue<K, V> root = ImmutableTreapMap.createEmpty();
+    private volatile ImmutableTreapValue<K, V> root;
 	private Comparator<? super K> comparator = null;
+	private final boolean lockFreeUpdates;
+	// The aggregators of the treaps of this base node (null = none)
+	private final Aggregator<?, ?>[] aggregators;
 	public ImmutableTreapMapHolder() {
         this(null);
     }
 
     public ImmutableTreapMapHolder(Comparator<? super K> comparator) {
+        this(comparator, false);
+    }
+
+    public ImmutableTreapMapHolder(Comparator<? super K> comparator, boolean lockFreeUpdates) {
+        this(comparator, lockFreeUpdates, null);
+    }
+
+    public ImmutableTreapMapHolder(Comparator<? super K> comparator, boolean lockFreeUpdates,
+            Aggregator<?, ?>[] aggregators) {
         this.comparator  = comparator;
-        root = ImmutableTreapMap.createEmpty();
+        this.lockFreeUpdates = lockFreeUpdates;
+        this.aggregators = aggregators;
+        root = ImmutableTreapMap.createEmpty(aggregators);
         	sleepingLock = new StampedLock();
         	sleepingWLock = sleepingLock.asWriteLock();//= lock.asWriteLock();
             sleepingRLock = sleepingLock.asReadLock();
     }
+
+    /**
+     * Creates a base node containing the treap root. All keys in root must
+     * be greater than or equal to routeLowerBound and less than
+     * routeUpperBound (null = no bound).
+     */
+    public ImmutableTreapMapHolder(Comparator<? super K> comparator, boolean lockFreeUpdates,
+            ImmutableTreapValue<K, V> root, Object routeLowerBound, Object routeUpperBound) {
+        this(comparator, lockFreeUpdates, ImmutableTreapMap.aggregatorsOf(root));
+        this.root = root;
+        this.maxKey = ImmutableTreapMap.maxKey(root);
+        this.routeLowerBound = routeLowerBound;
+        this.routeUpperBound = routeUpperBound;
+    }
 	
 		
 	@Override
 	public int size() {
-		return computeActualSize() ;
+		return ImmutableTreapMap.size(getRoot());
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return ImmutableTreapMap.isEmpty(root);
+		return ImmutableTreapMap.isEmpty(getRoot());
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public boolean containsKey(Object key) {
-		return ImmutableTreapMap.get(root, (K)key, comparator) != null;
+		return ImmutableTreapMap.get(getRoot(), (K)key, comparator) != null;
 	}
 
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public V get(Object key) {
-		return ImmutableTreapMap.get(root, (K)key, comparator);
+		return ImmutableTreapMap.get(getRoot(), (K)key, comparator);
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public V put(K key, V value) {
+		if (lockFreeUpdates) {
+			casUpdate(PUT, key, value);
+			return (V) ImmutableTreapMap.getPrevValue();
+		}
+		sampleUpdatedKey(key);
 	        if(maxKey == null || compare(key, maxKey) > 0){
 		   maxKey = key;
 	        }
@@ -251,6 +652,11 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
 	}
 	@SuppressWarnings("unchecked")
 	public V putIfAbsent(K key, V value) {
+		if (lockFreeUpdates) {
+			casUpdate(PUT_IF_ABSENT, key, value);
+			return (V) ImmutableTreapMap.getPrevValue();
+		}
+		sampleUpdatedKey(key);
 	        if(maxKey == null || compare(key, maxKey) > 0){
 		   maxKey = key;
 	        }
@@ -261,6 +667,11 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
 	@SuppressWarnings("unchecked")
 	@Override
 	public V remove(Object key) {
+		if (lockFreeUpdates) {
+			casUpdate(REMOVE, (K)key, null);
+			return (V) ImmutableTreapMap.getPrevValue();
+		}
+		sampleUpdatedKey((K)key);
 	        if(maxKey != null && compare((K)key, maxKey) == 0){
 		   maxKey = ImmutableTreapMap.maxKey(root);
 	        }
@@ -270,44 +681,83 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
 
 	@Override
 	public void clear() {
-        root = ImmutableTreapMap.createEmpty();
+		if (lockFreeUpdates) {
+			while (true) {
+				ImmutableTreapValue<K, V> currentRoot = root;
+				if (currentRoot instanceof FrozenRoot ||
+					rootUpdater.compareAndSet(this, currentRoot, ImmutableTreapMap.createEmpty(aggregators))) {
+					return;
+				}
+			}
+		}
+        root = ImmutableTreapMap.createEmpty(aggregators);
+	}
+
+	private ImmutableTreapMapHolder<K, V> createEmptyHolder() {
+		return new ImmutableTreapMapHolder<K, V>(comparator, lockFreeUpdates, aggregators);
 	}
 
 	@Override
 	public SplitableAndJoinableMap<K, V> join(
 			SplitableAndJoinableMap<K, V> right) {
-		ImmutableTreapMapHolder<K, V> newMap;
-		if(comparator == null){
-			newMap = new ImmutableTreapMapHolder<K, V>();
-		}else{
-			newMap = new ImmutableTreapMapHolder<K, V>(comparator);
-		}
-		newMap.root = ImmutableTreapMap.join(this.root, ((ImmutableTreapMapHolder<K, V>)right).root); 
+		ImmutableTreapMapHolder<K, V> newMap = createEmptyHolder();
+		newMap.root = ImmutableTreapMap.join(this.getRoot(), ((ImmutableTreapMapHolder<K, V>)right).getRoot()); 
 		newMap.maxKey = ((ImmutableTreapMapHolder<K, V>)right).maxKey;
+		newMap.routeLowerBound = routeLowerBound;
+		newMap.routeUpperBound = ((ImmutableTreapMapHolder<K, V>)right).routeUpperBound;
 		return newMap;
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public SplitableAndJoinableMap<K, V> split(Object[] splitKeyWriteBack,
 			SplitableAndJoinableMap<K, V>[] rightTreeWriteBack) {
-		ImmutableTreapMapHolder<K, V> newLeftPart;
-		ImmutableTreapMapHolder<K, V> newRightPart;
-		if (comparator == null) {
-			newLeftPart = new ImmutableTreapMapHolder<K, V>();
-			newRightPart = new ImmutableTreapMapHolder<K, V>();
-		} else {
-			newLeftPart = new ImmutableTreapMapHolder<K, V>(comparator);
-			newRightPart = new ImmutableTreapMapHolder<K, V>(comparator);
+		ImmutableTreapMapHolder<K, V> newLeftPart = createEmptyHolder();
+		ImmutableTreapMapHolder<K, V> newRightPart = createEmptyHolder();
+		ImmutableTreapValue<K, V> currentRoot = getRoot();
+		if (!splitAtHotKey(currentRoot, newLeftPart, newRightPart)) {
+			// Split at the median so that both parts get the same size
+			Object[] rightWriteBack = new Object[1];
+			newLeftPart.root = ImmutableTreapMap.splitAtRank(currentRoot, ImmutableTreapMap.size(currentRoot) / 2,
+					rightWriteBack);
+			newRightPart.root = (ImmutableTreapValue<K, V>) rightWriteBack[0];
 		}
-		newLeftPart.root = ImmutableTreapMap.splitLeft(root);
-		newRightPart.root = ImmutableTreapMap.splitRight(root);
 		newLeftPart.maxKey = ImmutableTreapMap.maxKey(newLeftPart.root);
 		newRightPart.maxKey = ImmutableTreapMap.maxKey(newRightPart.root);
 		splitKeyWriteBack[0] = ImmutableTreapMap.minKey(newRightPart.root);
+		newLeftPart.routeLowerBound = routeLowerBound;
+		newLeftPart.routeUpperBound = splitKeyWriteBack[0];
+		newRightPart.routeLowerBound = splitKeyWriteBack[0];
+		newRightPart.routeUpperBound = routeUpperBound;
 		rightTreeWriteBack[0] = newRightPart;
 		return newLeftPart;
 	}
 
+	/*
+	 * Puts the hot key first in the right part. If the hot key already is
+	 * the smallest key, it is put alone in the left part instead. Returns
+	 * false if there is no hot key or if one of the parts would be empty.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean splitAtHotKey(ImmutableTreapValue<K, V> currentRoot,
+			ImmutableTreapMapHolder<K, V> newLeftPart, ImmutableTreapMapHolder<K, V> newRightPart) {
+		K hotKey = hotKey();
+		if (hotKey == null) {
+			return false;
+		}
+		boolean hotKeyIsMinKey = compare(hotKey, ImmutableTreapMap.minKey(currentRoot)) <= 0;
+		Object[] rightWriteBack = new Object[1];
+		ImmutableTreapValue<K, V> leftRoot = ImmutableTreapMap.splitAtKey(currentRoot, hotKey, hotKeyIsMinKey,
+				comparator, rightWriteBack);
+		ImmutableTreapValue<K, V> rightRoot = (ImmutableTreapValue<K, V>) rightWriteBack[0];
+		if (ImmutableTreapMap.isEmpty(leftRoot) || ImmutableTreapMap.isEmpty(rightRoot)) {
+			return false;
+		}
+		newLeftPart.root = leftRoot;
+		newRightPart.root = rightRoot;
+		return true;
+	}
+
 	@Override
 	public Set<java.util.Map.Entry<K, V>> entrySet() {
 		TreeMap<K, V> entrySet;
@@ -316,7 +766,7 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
 		}else{
 			entrySet = new TreeMap<K, V>(comparator);
 		}
-		ImmutableTreapMap.traverseAllItems(root, (k,v) -> entrySet.put(k, v));
+		ImmutableTreapMap.traverseAllItems(getRoot(), (k,v) -> entrySet.put(k, v));
 		return entrySet.entrySet();
 	}
 	
@@ -348,34 +798,90 @@ public class ImmutableTreapMapHolder<K,V> extends AbstractMap<K, V> implements S
 	}
 
 	public boolean hasLessThanTwoElements() {
-		return ImmutableTreapMap.lessThanTwoElements(root);
+		return ImmutableTreapMap.lessThanTwoElements(getRoot());
 	}
 
 	public K maxKey() {
+	    if (lockFreeUpdates) {
+	        // Concurrent lock-free writers can not maintain maxKey
+	        return ImmutableTreapMap.maxKey(getRoot());
+	    }
 	    return maxKey;
 	    //return ImmutableTreapMap.maxKey(root);
 	}
 	
 	public void traverseKeysInRange(K lo, K hi, Consumer<K> consumer) {
-	    ImmutableTreapMap.traverseKeysInRange(root, lo, hi, consumer, comparator);
+	    ImmutableTreapMap.traverseKeysInRange(getRoot(), lo, hi, consumer, comparator);
 	}
 
-	public void performOperationToValuesInRange(K lo, K hi, BiFunction<K,V,V> operation) {
-		throw new RuntimeException("Not yet defined");
+	/**
+	 * Replaces the root with newRoot, which must have been computed from
+	 * getRoot(). The write lock must be held. In lock-free mode the base
+	 * node must also have been frozen, which makes concurrent lock-free
+	 * updates retry through the lock, and it is unfrozen by this call.
+	 */
+	public void installRoot(ImmutableTreapValue<K, V> newRoot) {
+		root = newRoot;
+		maxKey = ImmutableTreapMap.maxKey(newRoot);
 	}
 
-	private final class Counter{
-		public int count = 0;
+	/**
+	 * Stages newRoot so that getRoot() returns it once update is
+	 * committed. Has the same requirements as installRoot, and
+	 * installStagedRoot must be called after the commit.
+	 */
+	public void stageRoot(ImmutableTreapValue<K, V> newRoot, StagedUpdate update) {
+		root = new FrozenRoot<K, V>(getRoot(), newRoot, update);
 	}
-	
-	private int computeActualSize() {
-		final Counter c = new Counter();
-		ImmutableTreapMap.traverseAllItems(root, (k,v) ->c.count++);
-		return c.count;
+
+	@SuppressWarnings("unchecked")
+	public void installStagedRoot() {
+		installRoot(((FrozenRoot<K, V>) root).stagedRoot);
 	}
 
+	/**
+	 * Puts keys[from, to), which must be sorted, without duplicates and
+	 * within the route bounds of this base node, and returns the number of
+	 * keys that were not present before. The write lock must be held.
+	 */
+	@SuppressWarnings("unchecked")
+	public int putAllSorted(Object[] keys, Object[] values, int from, int to) {
+		K lastKey = (K) keys[to - 1];
+		// Only the last keys would be left in the sample anyway
+		for (int i = Math.max(from, to - HOT_KEY_SAMPLE_SIZE); i < to; i++) {
+			sampleUpdatedKey((K) keys[i]);
+		}
+		while (true) {
+			ImmutableTreapValue<K, V> currentRoot = root;
+			// Base nodes are only frozen by holders of the lock
+			ImmutableTreapValue<K, V> newRoot = ImmutableTreapMap.putAllSorted(currentRoot, keys, values, from, to,
+					comparator);
+			int added = ImmutableTreapMap.size(newRoot) - ImmutableTreapMap.size(currentRoot);
+			if (!lockFreeUpdates) {
+				root = newRoot;
+				if (maxKey == null || compare(lastKey, maxKey) > 0) {
+					maxKey = lastKey;
+				}
+				return added;
+			}
+			// Lock-free writers may change the root even though we hold the lock
+			if (rootUpdater.compareAndSet(this, currentRoot, newRoot)) {
+				return added;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
 	public ImmutableTreapValue<K, V> getRoot() {
-		return root;
+		ImmutableTreapValue<K, V> currentRoot = root;
+		if (currentRoot instanceof FrozenRoot) {
+			FrozenRoot<K, V> frozenRoot = (FrozenRoot<K, V>) currentRoot;
+			if (frozenRoot.update != null && frozenRoot.update.committed) {
+				return frozenRoot.stagedRoot;
+			}
+			return frozenRoot.root;
+		}
+		return currentRoot;
 	}
 
 
@@ -0,0 +1,77 @@
+package se.uu.collection.mutable
+
+import org.scalatest.FunSpec
+
+import me.winsh.ds.mutable.ImmutableTreapMapHolder
+import me.winsh.ds.mutable.interfaces.SplitableAndJoinableMap
+
+class BaseNodeSplitSpec extends FunSpec {
+
+  def split(baseNode:ImmutableTreapMapHolder[Int,Int]):(ImmutableTreapMapHolder[Int,Int], Int, ImmutableTreapMapHolder[Int,Int]) = {
+    val splitKey = new Array[Object](1)
+    val right = new Array[SplitableAndJoinableMap[Int,Int]](1)
+    val left = baseNode.split(splitKey, right).asInstanceOf[ImmutableTreapMapHolder[Int,Int]]
+    (left, splitKey(0).asInstanceOf[Int], right(0).asInstanceOf[ImmutableTreapMapHolder[Int,Int]])
+  }
+
+  describe("A base node where one key gets most of the updates") {
+    val baseNode = new ImmutableTreapMapHolder[Int,Int]()
+    for (i <- 1 to 1000) {
+      baseNode.put(i, i)
+    }
+    for (i <- 1 to 8) {
+      baseNode.put(700, i)
+    }
+
+    it("should report the key as hot") {
+      assert(baseNode.hotKey() === 700)
+    }
+
+    it("should be split at the hot key") {
+      val (left, splitKey, right) = split(baseNode)
+      assert(splitKey === 700)
+      assert(left.size === 699)
+      assert(right.size === 301)
+    }
+
+    it("should isolate the hot key in the second split") {
+      val (_, _, right) = split(baseNode)
+      for (i <- 1 to 8) {
+        right.put(700, i)
+      }
+      val (hotLeft, splitKey, rest) = split(right)
+      assert(splitKey === 701)
+      assert(hotLeft.size === 1)
+      assert(hotLeft.get(700) === 8)
+      assert(rest.size === 300)
+    }
+  }
+
+  describe("A base node without hot keys") {
+    val baseNode = new ImmutableTreapMapHolder[Int,Int]()
+    for (i <- 1 to 1000) {
+      baseNode.put(i, i)
+    }
+
+    it("should not report a hot key") {
+      assert(baseNode.hotKey() === null.asInstanceOf[Any])
+    }
+
+    it("should keep all keys when split") {
+      val (left, splitKey, right) = split(baseNode)
+      assert(left.size + right.size === 1000)
+      assert(left.maxKey() < splitKey)
+      assert(right.get(splitKey) === splitKey)
+    }
+
+    it("should be split at the median") {
+      val (left, splitKey, right) = split(baseNode)
+      assert(splitKey === 501)
+      assert(left.size === 500)
+      assert(right.size === 500)
+      val (leftOfLeft, _, rightOfLeft) = split(left)
+      assert(leftOfLeft.size === 250)
+      assert(rightOfLeft.size === 250)
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package se.uu.collection.mutable
+
+import org.scalatest.FunSpec
+import scala.collection.JavaConverters._
+
+import me.winsh.ds.concurrent.catrees.ImmDataCATreeMap
+import me.winsh.ds.concurrent.catrees.DefaultContentionPolicy
+
+class BulkLoadSpec extends FunSpec {
+
+  import java.lang.{Integer => JInt}
+
+  for(n <- List(0, 1, 64, 65, 10000)){
+    describe("A ImmDataCATreeMap bulk loaded with " + n + " sorted keys") {
+      val keys = (0 until n).map((i) => JInt.valueOf(i * 2)).toArray
+      val values = (0 until n).map((i) => JInt.valueOf(i)).toArray
+      val map = ImmDataCATreeMap.fromSorted[JInt,JInt](keys, values, 16)
+
+      it("should contain the keys") {
+        assert(map.size() === n)
+        assert(map.estimatedSize() === n)
+        for (i <- 0 until n) {
+          assert(map.get(i * 2) === i)
+          assert(map.get(i * 2 + 1) === null)
+        }
+      }
+
+      it("should be divided into the requested number of base nodes") {
+        assert(map.getNumberOfBaseNodes() === math.max(1, math.min(16, n)))
+      }
+
+      it("should support updates after loading") {
+        map.put(-1, -1)
+        map.put(n * 2 + 1, n)
+        map.remove(0)
+        assert(map.get(-1) === -1)
+        assert(map.get(n * 2 + 1) === n)
+        assert(map.get(0) === null)
+        assert(map.size() === math.max(n, 1) + 1)
+      }
+    }
+  }
+
+  for(mode <- ImmDataCATreeMap.UPDATE_MODE.values()){
+    describe("A ImmDataCATreeMap with " + mode + " updates bulk loaded from an iterator") {
+      val entries = (0 until 5000).map((i) => new java.util.AbstractMap.SimpleEntry[JInt,JInt](-i, i))
+      val map = ImmDataCATreeMap.fromSorted[JInt,JInt](entries.iterator.asJava, 8,
+        java.util.Collections.reverseOrder[JInt](), mode, new DefaultContentionPolicy(), null)
+
+      it("should use the given comparator") {
+        assert(map.size() === 5000)
+        assert(map.select(0) === 0)
+        assert(map.select(4999) === -4999)
+        assert(map.get(-4000) === 4000)
+      }
+    }
+  }
+
+  describe("Bulk loading keys that are not sorted") {
+    it("should throw") {
+      intercept[RuntimeException] {
+        ImmDataCATreeMap.fromSorted[JInt,JInt](Array[JInt](2, 1), Array[JInt](1, 2), 1)
+      }
+    }
+  }
+}
@@ -9,9 +9,13 @@ import scala.util.Random
 import org.scalatest.FunSpec
 import scala.collection.JavaConversions._
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ForkJoinPool
 import scala.collection.JavaConverters._
 
 import me.winsh.ds.concurrent.catrees.ImmDataCATreeMap
+import me.winsh.ds.concurrent.catrees.EagerSplitContentionPolicy
+import me.winsh.ds.concurrent.catrees.WaitTimeContentionPolicy
+import me.winsh.ds.concurrent.catrees.DefaultContentionPolicy
 class ConcurrentLinearHashMapSpec extends FunSpec {
 
   var actualMap:ImmDataCATreeMap[Int,Int] = null
@@ -23,12 +27,54 @@ class ConcurrentLinearHashMapSpec extends FunSpec {
     testMap(mapCreator _)
   }
 
+  describe("A ImmDataCATreeMap map with lock-free updates") {
+    def mapCreator:Map[Int,Int] = {
+      actualMap = new ImmDataCATreeMap[Int,Int](null, ImmDataCATreeMap.UPDATE_MODE.LOCK_FREE)
+        (actualMap).asScala
+    }
+    testMap(mapCreator _)
+  }
+
+  describe("A ImmDataCATreeMap map with combining updates") {
+    def mapCreator:Map[Int,Int] = {
+      actualMap = new ImmDataCATreeMap[Int,Int](null, ImmDataCATreeMap.UPDATE_MODE.COMBINING)
+        (actualMap).asScala
+    }
+    testMap(mapCreator _)
+  }
+
+  describe("A ImmDataCATreeMap map with an eager split contention policy") {
+    def mapCreator:Map[Int,Int] = {
+      actualMap = new ImmDataCATreeMap[Int,Int](null, new EagerSplitContentionPolicy(64))
+        (actualMap).asScala
+    }
+    testMap(mapCreator _)
+  }
+
+  describe("A ImmDataCATreeMap map with a wait-time contention policy") {
+    def mapCreator:Map[Int,Int] = {
+      actualMap = new ImmDataCATreeMap[Int,Int](null, new WaitTimeContentionPolicy(1000, 1))
+        (actualMap).asScala
+    }
+    testMap(mapCreator _)
+  }
+
+  describe("A ImmDataCATreeMap map with background adaptation") {
+    def mapCreator:Map[Int,Int] = {
+      actualMap = new ImmDataCATreeMap[Int,Int](null, ImmDataCATreeMap.UPDATE_MODE.LOCK_BASED,
+                                                new DefaultContentionPolicy(), ForkJoinPool.commonPool())
+        (actualMap).asScala
+    }
+    testMap(mapCreator _)
+  }
+
 
   private def testMap(mapCreator: (() => Map[Int, Int])){
 
     for(n <- (1 to 19000 by 100)){
       describe("when " + n + " elements are inserted in parallel") {
         val map = mapCreator()
+        val caTree = actualMap
         val refMap = new TrieMap[Int,Int]()
         (1 to n).par.foreach((i) => {
           refMap.+=((i, i))
@@ -39,6 +85,10 @@ class ConcurrentLinearHashMapSpec extends FunSpec {
           assert(refMap.size === map.size)
         }
 
+        it("should have an estimated size that matches the size") {
+          assert(caTree.estimatedSize() === refMap.size.toLong)
+        }
+
         it("should result in the same thing as when performing the actions on a TrieMap") {
          assert(refMap.iterator.toSet === map.iterator.toSet)
         }
@@ -75,6 +125,7 @@ class ConcurrentLinearHashMapSpec extends FunSpec {
 
       describe("When a map containing " + n + " elememnts has been created and deleted in parallel") {
         val map = mapCreator()
+        val caTree = actualMap
 
         (1 to n).foreach((i) => {
           map.+=((i, i))
@@ -92,6 +143,7 @@ class ConcurrentLinearHashMapSpec extends FunSpec {
           })
 
           assert(map.size === 0)
+          assert(caTree.isEmpty())
 
         }
         
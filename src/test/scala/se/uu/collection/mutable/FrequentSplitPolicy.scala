@@ -0,0 +1,17 @@
+package se.uu.collection.mutable
+
+import me.winsh.ds.concurrent.catrees.DefaultContentionPolicy
+import me.winsh.ds.mutable.ImmutableTreapMapHolder
+
+// Splits every tenth base node that is updated so that the keys are
+// spread over many base nodes. If joinEvery is not 0 a base node is also
+// joined now and then so that base nodes are replaced while the tests run.
+class FrequentSplitPolicy(joinEvery:Int = 0) extends DefaultContentionPolicy {
+  @volatile var updates = 0
+  override def shouldSplit(baseNode:ImmutableTreapMapHolder[_, _], numberOfBaseNodes:Int):Boolean = {
+    updates = updates + 1
+    updates % 10 == 0
+  }
+  override def shouldJoin(baseNode:ImmutableTreapMapHolder[_, _], numberOfBaseNodes:Int):Boolean =
+    joinEvery != 0 && updates % joinEvery == 0
+}
@@ -0,0 +1,657 @@
+package se.uu.collection.mutable
+
+import org.scalatest.FunSpec
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+import java.util.Spliterator
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+import java.util.function.BiConsumer
+import java.util.function.BiFunction
+import java.util.function.Consumer
+import java.util.stream.Collectors
+
+import me.winsh.ds.concurrent.catrees.Aggregators
+import me.winsh.ds.concurrent.catrees.ImmDataCATreeMap
+import me.winsh.ds.concurrent.catrees.ImmDataCATreeMap.BULK_MODE
+import me.winsh.ds.concurrent.catrees.ImmDataCATreeMap.UPDATE_MODE
+import me.winsh.ds.immutable.ImmutableTreapMap.Aggregator
+
+class ImmDataCATreeMapSpec extends FunSpec {
+
+  import java.lang.{Integer => JInt, Long => JLong}
+
+  // A map creator returns a map containing the given keys, which are
+  // sorted, with the values given by value. The map keeps the aggregates
+  // of the given aggregators.
+  type MapCreator = (Seq[Int], Int => Int, Seq[Aggregator[JInt, _]]) => ImmDataCATreeMap[JInt,JInt]
+
+  for(mode <- UPDATE_MODE.values()){
+    describe("A ImmDataCATreeMap with " + mode + " updates filled with put") {
+      def mapCreator(keys:Seq[Int], value:Int => Int, aggregators:Seq[Aggregator[JInt, _]]):ImmDataCATreeMap[JInt,JInt] = {
+        val map = new ImmDataCATreeMap[JInt,JInt](null, mode, new FrequentSplitPolicy(97), null, aggregators: _*)
+        for (key <- keys) {
+          map.put(key, value(key))
+        }
+        map
+      }
+      // Lock-free updates do not consult the contention policy, so such a
+      // map stays in one base node
+      if (mode != UPDATE_MODE.LOCK_FREE) {
+        it("should be split into several base nodes") {
+          assert(mapCreator(0 until 10000, (k) => k, Nil).getNumberOfBaseNodes() > 10)
+        }
+      }
+      testMap(mapCreator _)
+    }
+
+    describe("A ImmDataCATreeMap with " + mode + " updates loaded with fromSorted") {
+      def mapCreator(keys:Seq[Int], value:Int => Int, aggregators:Seq[Aggregator[JInt, _]]):ImmDataCATreeMap[JInt,JInt] = {
+        val entries = keys.map((k) => new java.util.AbstractMap.SimpleEntry[JInt,JInt](k, value(k)))
+        ImmDataCATreeMap.fromSorted[JInt,JInt](entries.iterator.asJava, 16, null, mode,
+          new FrequentSplitPolicy(97), null, aggregators: _*)
+      }
+      it("should be split into several base nodes") {
+        assert(mapCreator(0 until 10000, (k) => k, Nil).getNumberOfBaseNodes() > 10)
+      }
+      testMap(mapCreator _)
+    }
+  }
+
+  private def testMap(mapCreator: MapCreator){
+    def createMap(keys:Seq[Int], value:Int => Int = (k) => k):ImmDataCATreeMap[JInt,JInt] = mapCreator(keys, value, Nil)
+
+    describe("when it contains the even keys from 0 to 19998") {
+      val map = createMap(0 until 20000 by 2, _ / 2)
+
+      it("should return the values of sorted keys spanning several base nodes with getAll") {
+        val keys = (-10 until 20010).map((i) => JInt.valueOf(i))
+        val values = map.getAll(keys.asJava).asScala
+        assert(values.size === keys.size)
+        for ((key, value) <- keys.zip(values)) {
+          val expected = if (key >= 0 && key < 20000 && key % 2 == 0) key / 2 else null
+          assert(value === expected)
+        }
+      }
+
+      it("should call the consumer of getAll in the order of the keys") {
+        val keys = List[JInt](1, 2, 2, 500, 7000, 7000, 19998)
+        val seen = new java.util.ArrayList[(JInt, JInt)]()
+        map.getAll(keys.asJava, new BiConsumer[JInt,JInt] {
+          def accept(k:JInt, v:JInt) {
+            seen.add((k, v))
+          }
+        })
+        assert(seen.asScala.toList === List[(JInt, JInt)]((1, null), (2, 1), (2, 1), (500, 250), (7000, 3500), (7000, 3500), (19998, 9999)))
+      }
+
+      it("should reject keys to getAll that are not sorted") {
+        intercept[RuntimeException] {
+          map.getAll(List[JInt](5, 3).asJava)
+        }
+      }
+
+      it("should give the rank of present and absent keys") {
+        assert(map.rank(-5) === 0)
+        assert(map.rank(0) === 0)
+        assert(map.rank(1) === 1)
+        assert(map.rank(5000) === 2500)
+        assert(map.rank(5001) === 2501)
+        assert(map.rank(30000) === 10000)
+      }
+
+      it("should select the key with a given rank") {
+        for (i <- 0 until 10000 by 7) {
+          assert(map.select(i) === i * 2)
+        }
+        assert(map.select(-1) === null)
+        assert(map.select(10000) === null)
+      }
+
+      it("should count the keys in a range") {
+        assert(map.countInRange(0, 19998) === 10000)
+        assert(map.countInRange(-100, 100000) === 10000)
+        assert(map.countInRange(1, 9) === 4)
+        assert(map.countInRange(100, 100) === 1)
+        assert(map.countInRange(101, 101) === 0)
+        assert(map.countInRange(500, 100) === 0)
+        var count = 0
+        map.subSet(1234, 8765, new Consumer[JInt] {
+          def accept(k:JInt) {
+            count = count + 1
+          }
+        })
+        assert(map.countInRange(1234, 8765) === count)
+      }
+
+      for(threshold <- List(1L, 100L, Long.MaxValue)){
+        it("should give each key in the range to the consumer once in a parallel range query with parallelism threshold " + threshold) {
+          val keys = new ConcurrentLinkedQueue[JInt]()
+          map.subSet(101, 15000, threshold, new Consumer[JInt] {
+            def accept(k:JInt) {
+              keys.add(k)
+            }
+          })
+          assert(keys.asScala.toList.sortBy(_.intValue) === (102 to 15000 by 2).toList)
+        }
+
+        it("should combine the results of the parts of a parallel range query with parallelism threshold " + threshold + " in key order") {
+          val keys = map.subSet(101, 15000, threshold, Collectors.toList[JInt]())
+          assert(keys.asScala.toList === (102 to 15000 by 2).toList)
+          assert(map.subSet(20001, 30000, threshold, Collectors.counting[JInt]()) === 0)
+        }
+
+        it("should give the same keys in a parallel range query with parallelism threshold " + threshold + " as in the sequential range query") {
+          val sequential = new java.util.ArrayList[JInt]()
+          map.subSet(500, 9000, new Consumer[JInt] {
+            def accept(k:JInt) {
+              sequential.add(k)
+            }
+          })
+          assert(map.subSet(500, 9000, threshold, Collectors.toList[JInt]()) === sequential)
+        }
+      }
+    }
+
+    describe("when a snapshot is taken of the even keys from 0 to 19998") {
+      val map = createMap(0 until 20000 by 2, _ / 2)
+      val reference = new java.util.TreeMap[JInt,JInt]()
+      for (i <- 0 until 10000) {
+        reference.put(i * 2, i)
+      }
+      val snapshot = map.snapshot()
+
+      it("should iterate over the items of the snapshot in key order") {
+        assert(snapshot.size === 10000)
+        assert(snapshot.entrySet.asScala.toList === reference.entrySet.asScala.toList)
+        assert(snapshot.descendingKeySet.asScala.toList === reference.descendingKeySet.asScala.toList)
+      }
+
+      it("should navigate in the snapshot like in a TreeMap") {
+        for (key <- List[JInt](-1, 0, 1, 501, 7000, 19998, 20001)) {
+          assert(snapshot.lowerKey(key) === reference.lowerKey(key))
+          assert(snapshot.floorKey(key) === reference.floorKey(key))
+          assert(snapshot.ceilingKey(key) === reference.ceilingKey(key))
+          assert(snapshot.higherKey(key) === reference.higherKey(key))
+        }
+        assert(snapshot.firstKey === 0)
+        assert(snapshot.lastKey === 19998)
+      }
+
+      it("should support sub maps and descending maps of the snapshot") {
+        val sub = snapshot.subMap(1001, true, 3000, false).descendingMap
+        val expected = reference.subMap(1001, true, 3000, false).descendingMap
+        assert(sub.entrySet.asScala.toList === expected.entrySet.asScala.toList)
+        assert(sub.higherKey(2000) === expected.higherKey(2000))
+        assert(sub.headMap(2000, true).keySet.asScala.toList === expected.headMap(2000, true).keySet.asScala.toList)
+      }
+
+      it("should only contain the keys in the range in a snapshot of a range") {
+        val range = map.snapshot(101, 300)
+        assert(range.keySet.asScala.toList === (102 to 300 by 2).map((i) => JInt.valueOf(i)).toList)
+        assert(range.get(100) === null)
+        assert(range.get(302) === null)
+      }
+
+      it("should not change the snapshot in later updates") {
+        val before = map.snapshot()
+        map.put(1, 1)
+        map.remove(0)
+        assert(before.containsKey(0))
+        assert(!before.containsKey(1))
+        map.put(0, 0)
+        map.remove(1)
+      }
+
+      it("should give a read-only snapshot") {
+        intercept[UnsupportedOperationException] {
+          snapshot.put(1, 1)
+        }
+        intercept[UnsupportedOperationException] {
+          snapshot.pollFirstEntry()
+        }
+      }
+    }
+
+    describe("when it contains the keys from 0 to 9999") {
+      val map = createMap(0 until 10000)
+
+      it("should have a sized and sorted spliterator") {
+        val spliterator = map.entrySet.spliterator
+        assert(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.SORTED | Spliterator.ORDERED))
+        assert(spliterator.getExactSizeIfKnown === 10000)
+      }
+
+      it("should split the spliterator into parts that together contain all items in order") {
+        val spliterator = map.entrySet.spliterator
+        val prefix = spliterator.trySplit()
+        assert(prefix != null)
+        assert(prefix.estimateSize + spliterator.estimateSize === 10000)
+        val keys = new java.util.ArrayList[JInt]()
+        val addKey = new Consumer[java.util.Map.Entry[JInt, JInt]] {
+          def accept(e:java.util.Map.Entry[JInt, JInt]) {
+            keys.add(e.getKey)
+          }
+        }
+        prefix.forEachRemaining(addKey)
+        spliterator.forEachRemaining(addKey)
+        assert(keys.asScala.toList === (0 until 10000).toList)
+      }
+
+      it("should give the same result in parallel streams as in sequential streams") {
+        val keys = map.keySet.parallelStream.collect(Collectors.toList())
+        assert(keys.asScala.toList === (0 until 10000).toList)
+        val sum = map.entrySet.parallelStream.mapToLong(new java.util.function.ToLongFunction[java.util.Map.Entry[JInt, JInt]] {
+          def applyAsLong(e:java.util.Map.Entry[JInt, JInt]):Long = e.getValue.longValue
+        }).sum
+        assert(sum === (0 until 10000).map(_.toLong).sum)
+      }
+
+      for(bulkMode <- BULK_MODE.values(); threshold <- List(1L, 100L, Long.MaxValue)){
+        it("should visit every item in the range once in forEach in " + bulkMode + " mode with parallelism threshold " + threshold) {
+          val count = new LongAdder()
+          val sum = new LongAdder()
+          map.forEach(threshold, 100, 5099, bulkMode, new BiConsumer[JInt,JInt] {
+            def accept(k:JInt, v:JInt) {
+              count.increment()
+              sum.add(v.longValue)
+            }
+          })
+          assert(count.sum === 5000)
+          assert(sum.sum === (100 until 5100).map(_.toLong).sum)
+        }
+
+        it("should combine the results in key order in reduce in " + bulkMode + " mode with parallelism threshold " + threshold) {
+          val keys = map.reduce[String](threshold, 10, 2000, bulkMode, new BiFunction[JInt,JInt,String] {
+            def apply(k:JInt, v:JInt):String = if (k % 10 == 0) k + " " else null
+          }, new BiFunction[String,String,String] {
+            def apply(a:String, b:String):String = a + b
+          })
+          assert(keys === (10 to 2000 by 10).map(_ + " ").mkString)
+          val count = map.reduce[JLong](threshold, new BiFunction[JInt,JInt,JLong] {
+            def apply(k:JInt, v:JInt):JLong = JLong.valueOf(1)
+          }, new BiFunction[JLong,JLong,JLong] {
+            def apply(a:JLong, b:JLong):JLong = JLong.valueOf(a + b)
+          })
+          assert(count === 10000)
+        }
+
+        it("should find an item in search in " + bulkMode + " mode with parallelism threshold " + threshold) {
+          val find7777 = new BiFunction[JInt,JInt,JInt] {
+            def apply(k:JInt, v:JInt):JInt = if (k == 7777) v else null
+          }
+          assert(map.search[JInt](threshold, null, null, bulkMode, find7777) === 7777)
+          assert(map.search[JInt](threshold, null, 5000, bulkMode, find7777) === null)
+        }
+      }
+    }
+
+    describe("when a range of the keys from 0 to 9999 is updated") {
+      val map = createMap(0 until 10000)
+
+      it("should update the values in a range spanning several base nodes") {
+        map.rangeUpdate(1000, 1999, new BiFunction[JInt,JInt,JInt] {
+          def apply(k:JInt, v:JInt):JInt = v + 10000
+        })
+        for (i <- 0 until 10000) {
+          val expected = if (i >= 1000 && i <= 1999) i + 10000 else i
+          assert(map.get(i) === expected)
+        }
+        assert(map.size() === 10000)
+      }
+
+      it("should treat null as a missing bound of the range to update") {
+        val negate = new BiFunction[JInt,JInt,JInt] {
+          def apply(k:JInt, v:JInt):JInt = -k
+        }
+        map.rangeUpdate(null, 99, negate)
+        map.rangeUpdate(9900, null, negate)
+        assert(map.get(0) === 0)
+        assert(map.get(99) === -99)
+        assert(map.get(100) === 100)
+        assert(map.get(9899) === 9899)
+        assert(map.get(9999) === -9999)
+      }
+
+      it("should not change anything when an empty range is updated") {
+        val zero = new BiFunction[JInt,JInt,JInt] {
+          def apply(k:JInt, v:JInt):JInt = 0
+        }
+        map.rangeUpdate(20000, 30000, zero)
+        map.rangeUpdate(500, 400, zero)
+        assert(map.get(450) === 450)
+      }
+
+      it("should remove the keys for which the update operation returns null") {
+        map.rangeUpdate(7000, 7999, new BiFunction[JInt,JInt,JInt] {
+          def apply(k:JInt, v:JInt):JInt = if (k % 2 == 0) null else v
+        })
+        for (i <- 7000 to 7999) {
+          assert(map.get(i) === (if (i % 2 == 0) null else i))
+        }
+        assert(map.size() === 9500)
+      }
+
+      it("should not change anything if the update operation throws") {
+        intercept[IllegalStateException] {
+          map.rangeUpdate(2000, 2999, new BiFunction[JInt,JInt,JInt] {
+            def apply(k:JInt, v:JInt):JInt = {
+              if (k == 2500) throw new IllegalStateException()
+              -k
+            }
+          })
+        }
+        for (i <- 2000 to 2999) {
+          assert(map.get(i) === i)
+        }
+      }
+
+      it("should update the range atomically with respect to concurrent reads") {
+        val updater = new Thread(new Runnable {
+          def run() {
+            for (i <- 1 to 100) {
+              map.rangeUpdate(5000, 5999, new BiFunction[JInt,JInt,JInt] {
+                def apply(k:JInt, v:JInt):JInt = v + 1
+              })
+            }
+          }
+        })
+        updater.start()
+        while (updater.isAlive()) {
+          val keys = map.subSet(5000, 5999)
+          val first = map.get(5000) - 5000
+          val last = map.get(5999) - 5999
+          assert(first <= last)
+          assert(keys.length === 1000)
+        }
+        updater.join()
+        assert(map.get(5000) === 5100)
+        assert(map.get(5999) === 6099)
+      }
+    }
+
+    describe("when a range of the keys from 0 to 9999 is removed") {
+      val map = createMap(0 until 10000)
+
+      it("should remove a range spanning several base nodes") {
+        assert(map.removeRange(1000, 4999) === 4000)
+        for (i <- 0 until 10000) {
+          val expected = if (i >= 1000 && i <= 4999) null else i
+          assert(map.get(i) === expected)
+        }
+        assert(map.size() === 6000)
+        assert(map.estimatedSize() === 6000)
+      }
+
+      it("should only count removed keys that were present") {
+        assert(map.removeRange(500, 1500) === 500)
+        assert(map.removeRange(1000, 4999) === 0)
+        assert(map.removeRange(600, 400) === 0)
+      }
+
+      it("should treat null as a missing bound of the range to remove") {
+        assert(map.removeRange(9000, null) === 1000)
+        assert(map.removeRange(null, 99) === 100)
+        assert(map.get(100) === 100)
+        assert(map.get(8999) === 8999)
+        assert(map.size() === 4400)
+      }
+
+      it("should keep working after everything has been removed") {
+        assert(map.removeRange(null, null) === 4400)
+        assert(map.isEmpty())
+        map.put(42, 42)
+        assert(map.get(42) === 42)
+        assert(map.size() === 1)
+      }
+
+      it("should remove the range atomically with respect to concurrent reads") {
+        for (i <- 0 until 2000) {
+          map.put(i, 0)
+        }
+        // Round r removes all keys and then puts them back in increasing
+        // order with the value r
+        val round = new AtomicInteger(0)
+        // Assertions in the remover thread would not fail the test
+        val wrongRemoveCounts = new AtomicInteger(0)
+        val remover = new Thread(new Runnable {
+          def run() {
+            for (r <- 1 to 100) {
+              round.set(r)
+              if (map.removeRange(null, null) != 2000) {
+                wrongRemoveCounts.incrementAndGet()
+              }
+              for (i <- 0 until 2000) {
+                map.put(i, r)
+              }
+            }
+          }
+        })
+        remover.start()
+        while (remover.isAlive()) {
+          val r = round.get()
+          val first = map.get(0)
+          val last = map.get(1999)
+          // A missing first key means that round r or a later round has
+          // removed the keys, so an older last key is left from a torn removal
+          assert(!(first == null && last != null && last < r))
+        }
+        remover.join()
+        assert(wrongRemoveCounts.get() === 0)
+        assert(map.size() === 2000)
+        assert(map.get(1999) === 100)
+      }
+    }
+
+    describe("when batches are put into a map containing the even keys from 0 to 9998") {
+      val map = createMap(0 until 10000 by 2)
+
+      it("should put all entries of a batch spanning several base nodes") {
+        val batch = new java.util.HashMap[JInt,JInt]()
+        for (i <- 0 until 10000 by 3) {
+          batch.put(i, -i)
+        }
+        map.putAll(batch)
+        for (i <- 0 until 10000) {
+          val expected = if (i % 3 == 0) -i else if (i % 2 == 0) i else null
+          assert(map.get(i) === expected)
+        }
+        val expectedSize = (0 until 10000).count((i) => i % 2 == 0 || i % 3 == 0)
+        assert(map.size() === expectedSize)
+        assert(map.estimatedSize() === expectedSize)
+      }
+
+      it("should handle empty batches and batches outside the current keys") {
+        map.putAll(new java.util.HashMap[JInt,JInt]())
+        map.putAll(Map[JInt,JInt](JInt.valueOf(-5) -> JInt.valueOf(5), JInt.valueOf(20000) -> JInt.valueOf(1)).asJava)
+        assert(map.get(-5) === 5)
+        assert(map.get(20000) === 1)
+      }
+    }
+
+    describe("when large batches are put into an empty map") {
+      val map = createMap(Nil)
+      for (b <- 0 until 20) {
+        val batch = new java.util.TreeMap[JInt,JInt]()
+        for (i <- 0 until 5000) {
+          batch.put(b * 5000 + i, b)
+        }
+        map.putAll(batch)
+      }
+
+      it("should contain all keys of the batches") {
+        assert(map.size() === 100000)
+        for (i <- 0 until 100000) {
+          assert(map.get(i) === i / 5000)
+        }
+      }
+    }
+
+    describe("when its views are used") {
+      def createViewsMap() = createMap(0 until 1000, _ * 10)
+
+      it("should iterate over the entries, keys and values in key order") {
+        val map = createViewsMap()
+        assert(map.entrySet.asScala.toList.map((e) => e.getKey) === (0 until 1000).toList)
+        assert(map.keySet.asScala.toList === (0 until 1000).toList)
+        assert(map.values.asScala.toList === (0 until 1000).map(_ * 10).toList)
+        assert(map.descendingKeySet.asScala.toList === (0 until 1000).reverse.toList)
+      }
+
+      it("should support navigation and sub sets in the key set") {
+        val keys = createViewsMap().navigableKeySet
+        assert(keys.first === 0)
+        assert(keys.last === 999)
+        assert(keys.higher(500) === 501)
+        val sub = keys.subSet(100, false, 200, true)
+        assert(sub.asScala.toList === (101 to 200).toList)
+        assert(sub.size === 100)
+        assert(sub.descendingSet.headSet(150, true).asScala.toList === (150 to 200).reverse.toList)
+        assert(!sub.contains(100))
+      }
+
+      it("should remove keys from the map through the iterators") {
+        val map = createViewsMap()
+        val iterator = map.keySet.headSet(500).iterator
+        while (iterator.hasNext) {
+          if (iterator.next() % 2 == 0) {
+            iterator.remove()
+          }
+        }
+        assert(map.size === 750)
+        assert(map.get(10) === null)
+        assert(map.get(11) === 110)
+        assert(map.keySet.pollFirst() === 1)
+        assert(!map.containsKey(1))
+      }
+
+      it("should not be affected by updates during iteration") {
+        val map = createViewsMap()
+        val iterator = map.entrySet.iterator
+        map.put(5000, 1)
+        map.remove(999)
+        assert(iterator.asScala.map((e) => e.getKey).toList === (0 until 1000).toList)
+      }
+    }
+
+    describe("when it is iterated weakly consistently over the even keys from 0 to 9998") {
+      val map = createMap(0 until 10000 by 2)
+
+      it("should return the items in key order") {
+        assert(map.weaklyConsistentIterator().asScala.map((e) => e.getKey).toList === (0 until 10000 by 2).toList)
+      }
+
+      it("should only return the items in the range when a range is given") {
+        assert(map.weaklyConsistentIterator(101, 300).asScala.map((e) => e.getKey).toList === (102 to 300 by 2).toList)
+        assert(map.weaklyConsistentIterator(null, 4).asScala.map((e) => e.getKey).toList === List(0, 2, 4))
+        assert(map.weaklyConsistentIterator(9997, null).asScala.map((e) => e.getKey).toList === List(9998))
+      }
+
+      it("should return all keys that are not updated during concurrent updates") {
+        @volatile var stop = false
+        val writers = (1 to 3).map((_) => new Thread(new Runnable {
+          def run() {
+            val random = new Random()
+            while (!stop) {
+              val key = random.nextInt(5000) * 2 + 1
+              if (random.nextBoolean()) map.put(key, key) else map.remove(key)
+            }
+          }
+        }))
+        writers.foreach(_.start())
+        for (i <- 1 to 20) {
+          val keys = map.weaklyConsistentIterator().asScala.map((e) => e.getKey.intValue).toList
+          assert(keys === keys.sorted.distinct)
+          assert(keys.filter(_ % 2 == 0) === (0 until 10000 by 2).toList)
+        }
+        stop = true
+        writers.foreach(_.join())
+      }
+    }
+
+    describe("when it has a sum aggregator") {
+      val longSumAggregator = Aggregators.longSum[JInt]()
+      val map = mapCreator(0 until 10000, (k) => k, List(longSumAggregator))
+      val longSum = map.rangeAggregate[JLong](longSumAggregator)
+
+      def sum(lo:Int, hi:Int):Long = (lo to hi).map(_.toLong).sum
+
+      it("should sum the values in a range") {
+        assert(map.aggregate[JLong](100, 200, longSum) === sum(100, 200))
+        assert(map.aggregate[JLong](0, 9999, longSum) === sum(0, 9999))
+        assert(map.aggregate[JLong](5, 5, longSum) === 5L)
+        assert(map.aggregate[JLong](200, 100, longSum) === 0L)
+      }
+
+      it("should treat null as a missing bound of the range to aggregate") {
+        assert(map.aggregate[JLong](null, null, longSum) === sum(0, 9999))
+        assert(map.aggregate[JLong](null, 99, longSum) === sum(0, 99))
+        assert(map.aggregate[JLong](9900, null, longSum) === sum(9900, 9999))
+      }
+
+      it("should see updates in the aggregates") {
+        map.put(150, 1150)
+        map.remove(160)
+        assert(map.aggregate[JLong](100, 200, longSum) === sum(100, 200) + 1000 - 160)
+      }
+
+      it("should see range operations in the aggregates") {
+        map.removeRange(300, 399)
+        assert(map.aggregate[JLong](250, 449, longSum) === sum(250, 299) + sum(400, 449))
+        map.clear()
+        assert(map.aggregate[JLong](null, null, longSum) === 0L)
+      }
+    }
+
+    describe("when it has a max aggregator") {
+      val maxAggregator = Aggregators.max[JInt]()
+      val map = mapCreator(0 until 1000, (k) => (k * 37) % 1000, List(maxAggregator))
+      val max = map.rangeAggregate[JInt](maxAggregator)
+
+      it("should give the largest value in a range") {
+        assert(map.aggregate[JInt](100, 200, max) === (100 to 200).map((i) => (i * 37) % 1000).max)
+      }
+
+      it("should give null as the largest value of an empty range") {
+        assert(map.aggregate[JInt](2000, 3000, max) === null)
+      }
+    }
+
+    describe("when it has several aggregators") {
+      val countAggregator = Aggregators.count[JInt]()
+      val longSumAggregator = Aggregators.longSum[JInt]()
+      val maxAggregator = Aggregators.max[JInt]()
+      val map = mapCreator(0 until 100000, (k) => (k * 37) % 1000, List(countAggregator, longSumAggregator, maxAggregator))
+      val count = map.rangeAggregate[JLong](countAggregator)
+      val longSum = map.rangeAggregate[JLong](longSumAggregator)
+      val max = map.rangeAggregate[JInt](maxAggregator)
+
+      it("should give the aggregate of the given aggregator when they alternate") {
+        val random = new Random(1)
+        for (i <- 0 until 300) {
+          val lo = random.nextInt(100000)
+          val hi = lo + random.nextInt(20000)
+          val values = (lo to math.min(hi, 99999)).map((k) => (k * 37) % 1000)
+          assert(map.aggregate[JLong](lo, hi, count) === values.size.toLong)
+          assert(map.aggregate[JLong](lo, hi, longSum) === values.map(_.toLong).sum)
+          assert(map.aggregate[JInt](lo, hi, max) === values.max)
+        }
+      }
+
+      it("should keep all aggregates up to date") {
+        map.put(50, 5000)
+        assert(map.aggregate[JLong](0, 99, count) === 100L)
+        assert(map.aggregate[JInt](0, 99, max) === 5000)
+        assert(map.aggregate[JLong](50, 50, longSum) === 5000L)
+      }
+
+      it("should not accept an aggregator that was not given when the map was created") {
+        intercept[RuntimeException] {
+          map.rangeAggregate[JLong](Aggregators.longSum[JInt]())
+        }
+      }
+    }
+  }
+}
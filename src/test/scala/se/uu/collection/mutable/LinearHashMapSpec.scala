@@ -13,6 +13,21 @@ class MapSpec extends FunSpec {
      testMap(mapCreator _)
    }
 
+     describe("A me.winsh.ds.concurrent.catrees.ImmDataCATreeMap with lock-free updates") {
+     def mapCreator:Map[Int,Int] = (new me.winsh.ds.concurrent.catrees.ImmDataCATreeMap[Int,Int](null, me.winsh.ds.concurrent.catrees.ImmDataCATreeMap.UPDATE_MODE.LOCK_FREE)).asScala
+     testMap(mapCreator _)
+   }
+
+     describe("A me.winsh.ds.concurrent.catrees.ImmDataCATreeMap with combining updates") {
+     def mapCreator:Map[Int,Int] = (new me.winsh.ds.concurrent.catrees.ImmDataCATreeMap[Int,Int](null, me.winsh.ds.concurrent.catrees.ImmDataCATreeMap.UPDATE_MODE.COMBINING)).asScala
+     testMap(mapCreator _)
+   }
+
+     describe("A me.winsh.ds.concurrent.catrees.ImmDataCATreeMap with a time-decayed contention policy") {
+     def mapCreator:Map[Int,Int] = (new me.winsh.ds.concurrent.catrees.ImmDataCATreeMap[Int,Int](null, new me.winsh.ds.concurrent.catrees.TimeDecayedContentionPolicy())).asScala
+     testMap(mapCreator _)
+   }
+
 
   private def testMap(mapCreator: (() => Map[Int, Int])){
     describe("when created") {
@@ -0,0 +1,118 @@
+package se.uu.collection.mutable
+
+import org.scalatest.FunSpec
+
+import me.winsh.ds.concurrent.catrees.ImmDataCATreeMap
+import me.winsh.ds.concurrent.catrees.DefaultContentionPolicy
+import me.winsh.ds.mutable.ImmutableTreapMapHolder
+
+class RouteLayerSpec extends FunSpec {
+
+  // Splits the base node on every update so that sequential inserts
+  // build the worst possible split history
+  class AlwaysSplitPolicy extends DefaultContentionPolicy {
+    override def shouldSplit(baseNode:ImmutableTreapMapHolder[_, _], numberOfBaseNodes:Int):Boolean = true
+    override def shouldJoin(baseNode:ImmutableTreapMapHolder[_, _], numberOfBaseNodes:Int):Boolean = false
+  }
+
+  // Splits in the first phase and joins in the second phase
+  class PhasePolicy extends DefaultContentionPolicy {
+    @volatile var splitPhase = true
+    override def shouldSplit(baseNode:ImmutableTreapMapHolder[_, _], numberOfBaseNodes:Int):Boolean = splitPhase
+    override def shouldJoin(baseNode:ImmutableTreapMapHolder[_, _], numberOfBaseNodes:Int):Boolean = !splitPhase
+  }
+
+  def log2Ceil(n:Int):Int = 32 - Integer.numberOfLeadingZeros(n - 1)
+
+  // Deep paths are rebalanced by a background task, so wait for it
+  def waitForRouteLayerDepth(map:ImmDataCATreeMap[Int,Int], maxDepth:Int):Int = {
+    val deadline = System.currentTimeMillis() + 10000
+    while (map.getRouteLayerDepth() > maxDepth && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10)
+    }
+    map.getRouteLayerDepth()
+  }
+
+  for(mode <- ImmDataCATreeMap.UPDATE_MODE.values()){
+    describe("A ImmDataCATreeMap with " + mode + " updates where " + 20000 + " increasing keys are inserted") {
+      val map = new ImmDataCATreeMap[Int,Int](null, mode, new AlwaysSplitPolicy())
+      for (i <- 1 to 20000) {
+        map.put(i, i)
+      }
+      val baseNodes = map.getNumberOfBaseNodes()
+
+      it("should have split into many base nodes") {
+        assert(baseNodes > 1000)
+      }
+
+      it("should keep the route layer depth logarithmic in the number of base nodes") {
+        val maxDepth = 2 * (log2Ceil(baseNodes) + 1)
+        assert(waitForRouteLayerDepth(map, maxDepth) <= maxDepth)
+      }
+
+      it("should have a balanced route layer after rebalanceRouteLayer") {
+        map.rebalanceRouteLayer()
+        assert(map.getRouteLayerDepth() === log2Ceil(baseNodes))
+        assert(map.getNumberOfBaseNodes() === baseNodes)
+      }
+
+      it("should still contain all keys") {
+        for (i <- 1 to 20000) {
+          assert(map.get(i) === i)
+        }
+        assert(map.size === 20000)
+        var count = 0
+        var last = 0
+        map.subSet(1, 20000, new java.util.function.Consumer[Int] {
+          def accept(k:Int) {
+            assert(k === last + 1)
+            last = k
+            count = count + 1
+          }
+        })
+        assert(count === 20000)
+      }
+
+      it("should find all keys when the base node index is stale") {
+        for (i <- 20001 to 30000) {
+          map.put(i, i)
+        }
+        for (i <- 1 to 30000 by 3) {
+          map.remove(i)
+        }
+        for (i <- 1 to 30000) {
+          if (i % 3 == 1) {
+            assert(!map.containsKey(i))
+          } else {
+            assert(map.get(i) === i)
+          }
+        }
+      }
+    }
+
+    describe("A ImmDataCATreeMap with " + mode + " updates where all base nodes are split and then joined") {
+      val policy = new PhasePolicy()
+      val map = new ImmDataCATreeMap[Int,Int](null, mode, policy)
+      for (i <- 1 to 5000) {
+        map.put(i, i)
+      }
+      map.rebalanceRouteLayer()
+      val baseNodesAfterSplits = map.getNumberOfBaseNodes()
+      policy.splitPhase = false
+      for (round <- 1 to 20; i <- 1 to 5000 by 7) {
+        map.put(i, i)
+      }
+
+      it("should join most base nodes") {
+        assert(map.getNumberOfBaseNodes() < baseNodesAfterSplits / 10)
+      }
+
+      it("should still contain all keys") {
+        for (i <- 1 to 5000) {
+          assert(map.get(i) === i)
+        }
+        assert(map.size === 5000)
+      }
+    }
+  }
+}
@@ -20,7 +20,12 @@ class TestRangeOperations extends FunSpec {
 
   describe("A ImmDataCATreeMap map") {
     def mapCreator:ImmDataCATreeMap[Int,Int] =  new ImmDataCATreeMap[Int,Int]()
-    //testMap(mapCreator _, true)
+    testMap(mapCreator _, true)
+    testMap(mapCreator _, false)
+  }
+
+  describe("A ImmDataCATreeMap map with lock-free updates") {
+    def mapCreator:ImmDataCATreeMap[Int,Int] =  new ImmDataCATreeMap[Int,Int](null, ImmDataCATreeMap.UPDATE_MODE.LOCK_FREE)
     testMap(mapCreator _, false)
   }
 